@@ -86,6 +86,13 @@ public interface Connector {
      */
     public String getBrickName();
 
+    /**
+     * Get the address of the robot, e.g. found by the discovery, to display in the gui.
+     *
+     * @return robot address
+     */
+    public String getRobotIp();
+
     /**
      * In this state, the connector will download system libraries from the server, and upload it to the robot.
      */
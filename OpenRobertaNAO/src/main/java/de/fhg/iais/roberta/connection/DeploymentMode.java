@@ -0,0 +1,34 @@
+package de.fhg.iais.roberta.connection;
+
+/**
+ * How the HAL and the user program are transferred to the robot.
+ */
+public enum DeploymentMode {
+    /**
+     * one scp channel per file
+     */
+    SCP,
+    /**
+     * all files in one tar stream, extracted by a single remote "tar x"
+     */
+    TAR,
+    /**
+     * like {@link #TAR}, but the stream is gzip compressed
+     */
+    TAR_GZIP;
+
+    /**
+     * @param property value from the properties file, e.g. "scp", "tar" or "tar-gzip"
+     * @return the matching mode, {@link #TAR_GZIP} if the value is unknown
+     */
+    public static DeploymentMode fromProperty(String property) {
+        if ( property != null ) {
+            for ( DeploymentMode mode : values() ) {
+                if ( mode.name().replace('_', '-').equalsIgnoreCase(property.trim()) ) {
+                    return mode;
+                }
+            }
+        }
+        return TAR_GZIP;
+    }
+}
@@ -0,0 +1,232 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import de.fhg.iais.roberta.util.Utils;
+
+/**
+ * What the connector knows about the robots it was connected to: firmware version, mac address, host name and hardware. The profiles are keyed by the
+ * fingerprint of the robot's ssh host key, so a robot is recognised under a new address. A profile younger than the TTL is used without asking the robot,
+ * an older one is used as well but refreshed in the background. The profiles are kept in devices.properties in the working directory of the connector.
+ */
+public class DeviceProfiles {
+    public static final long TTL = 12 * 60 * 60 * 1000;
+
+    /**
+     * prints the version of NAOqi in the first line, followed by key=value lines. The mac address is the one of the interface the ssh connection came in.
+     */
+    static final String PROBE_COMMAND =
+        "naoqi-bin --version | head -1; set -- $SSH_CONNECTION; "
+            + "i=$(ip -o -4 addr show 2>/dev/null | awk -v a=\"$3/\" 'index($4, a) == 1 { print $2; exit }'); "
+            + "echo mac=$(cat /sys/class/net/${i:-eth0}/address 2>/dev/null); echo hostname=$(hostname); echo hardware=$(uname -m)";
+
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static DeviceProfiles defaultProfiles;
+
+    private final File file;
+    private final long ttl;
+    private final Properties profiles = new Properties();
+    private final Set<String> refreshing = Collections.synchronizedSet(new HashSet<String>());
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "device-profile-refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @param file the properties file keeping the profiles
+     * @param ttl the time in ms a profile is used without refreshing it
+     */
+    public DeviceProfiles(File file, long ttl) {
+        this.file = file;
+        this.ttl = ttl;
+        if ( file.isFile() ) {
+            try (InputStream in = new FileInputStream(file)) {
+                this.profiles.load(in);
+            } catch ( IOException e ) {
+                log.info("Could not read the device profiles " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the profiles shared by all connectors of this process
+     */
+    public static synchronized DeviceProfiles getDefault() {
+        if ( defaultProfiles == null ) {
+            defaultProfiles = new DeviceProfiles(new File(Utils.getWorkingDirectory(), "devices.properties"), TTL);
+        }
+        return defaultProfiles;
+    }
+
+    /**
+     * @param fingerPrint the fingerprint of the robot's host key
+     * @return the profile of the robot or null if it is not known
+     */
+    public synchronized Profile get(String fingerPrint) {
+        String firmware = this.profiles.getProperty(fingerPrint + ".firmware");
+        if ( firmware == null ) {
+            return null;
+        }
+        try {
+            return new Profile(
+                firmware,
+                this.profiles.getProperty(fingerPrint + ".mac", ""),
+                this.profiles.getProperty(fingerPrint + ".hostname", ""),
+                this.profiles.getProperty(fingerPrint + ".hardware", ""),
+                Long.parseLong(this.profiles.getProperty(fingerPrint + ".probedAt", "0")));
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    public synchronized void put(String fingerPrint, Profile profile) {
+        this.profiles.setProperty(fingerPrint + ".firmware", profile.firmware);
+        this.profiles.setProperty(fingerPrint + ".mac", profile.mac);
+        this.profiles.setProperty(fingerPrint + ".hostname", profile.hostname);
+        this.profiles.setProperty(fingerPrint + ".hardware", profile.hardware);
+        this.profiles.setProperty(fingerPrint + ".probedAt", Long.toString(profile.probedAt));
+        this.file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(this.file)) {
+            this.profiles.store(out, "robots known to the connector, keyed by the fingerprint of their ssh host key");
+        } catch ( IOException e ) {
+            log.info("Could not write the device profiles " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the profile can be used without refreshing it
+     */
+    public boolean isFresh(Profile profile) {
+        return System.currentTimeMillis() - profile.probedAt < this.ttl;
+    }
+
+    /**
+     * Probe the robot in the background and store the new profile, unless it is refreshed already.
+     *
+     * @param probe runs {@link #PROBE_COMMAND} on the robot and returns the new profile
+     * @param listener is told about the new profile, may be null
+     */
+    public void refresh(final String fingerPrint, final Probe probe, final Listener listener) {
+        if ( !this.refreshing.add(fingerPrint) ) {
+            return;
+        }
+        this.refresher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Profile profile = probe.probe();
+                    put(fingerPrint, profile);
+                    if ( listener != null ) {
+                        listener.refreshed(profile);
+                    }
+                } catch ( Exception e ) {
+                    log.info("Refreshing the device profile failed: " + e.getMessage());
+                } finally {
+                    DeviceProfiles.this.refreshing.remove(fingerPrint);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the robot for its profile.
+     */
+    public interface Probe {
+        Profile probe() throws Exception;
+    }
+
+    public interface Listener {
+        void refreshed(Profile profile);
+    }
+
+    /**
+     * The properties of one robot.
+     */
+    public static class Profile {
+        private final String firmware;
+        private final String mac;
+        private final String hostname;
+        private final String hardware;
+        private final long probedAt;
+
+        Profile(String firmware, String mac, String hostname, String hardware, long probedAt) {
+            this.firmware = firmware;
+            this.mac = mac;
+            this.hostname = hostname;
+            this.hardware = hardware;
+            this.probedAt = probedAt;
+        }
+
+        /**
+         * @param output the output of {@link DeviceProfiles#PROBE_COMMAND}
+         * @return the profile of the robot, probed now
+         * @throws IllegalArgumentException if the first line does not contain the version of NAOqi, e.g. if naoqi-bin is missing
+         */
+        public static Profile parse(String output) {
+            String[] lines = output.split("\n");
+            int colon = lines[0].indexOf(':');
+            String version = colon < 0 ? "" : lines[0].substring(colon + 1).trim();
+            if ( version.isEmpty() ) {
+                throw new IllegalArgumentException("Unexpected output of the device probe: " + lines[0]);
+            }
+            Properties values = new Properties();
+            for ( int i = 1; i < lines.length; i++ ) {
+                int eq = lines[i].indexOf('=');
+                if ( eq > 0 ) {
+                    values.setProperty(lines[i].substring(0, eq).trim(), lines[i].substring(eq + 1).trim());
+                }
+            }
+            return new Profile(
+                version.replace(".", "-"),
+                values.getProperty("mac", ""),
+                values.getProperty("hostname", ""),
+                values.getProperty("hardware", ""),
+                System.currentTimeMillis());
+        }
+
+        /**
+         * @return the firmware version with dashes, e.g. 2-1-4-13
+         */
+        public String getFirmware() {
+            return this.firmware;
+        }
+
+        /**
+         * @return the mac address, empty if it is not known
+         */
+        public String getMac() {
+            return this.mac;
+        }
+
+        public String getHostname() {
+            return this.hostname;
+        }
+
+        public String getHardware() {
+            return this.hardware;
+        }
+
+        @Override
+        public String toString() {
+            return "firmware " + this.firmware + ", mac " + this.mac + ", host " + this.hostname + ", hardware " + this.hardware;
+        }
+    }
+}
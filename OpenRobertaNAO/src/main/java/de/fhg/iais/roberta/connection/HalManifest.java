@@ -0,0 +1,125 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the file names of the HAL to the SHA-1 of their content. A manifest is stored next to the HAL on the robot, so that only files whose hash differs
+ * from the local HAL have to be uploaded. The format is one "hash name" line per file, like the output of sha1sum.
+ */
+public class HalManifest {
+    public static final String FILE_NAME = ".hal_manifest";
+
+    /**
+     * hashes of local files, keyed by path and only valid as long as size and modification time do not change
+     */
+    private static final Map<String, CachedHash> localHashes = new ConcurrentHashMap<>();
+
+    private final Map<String, String> hashes = new TreeMap<>();
+
+    /**
+     * compute the manifest of the local HAL. Hashes of unchanged files are taken from a cache.
+     *
+     * @param directory the directory containing the HAL files
+     * @param fileNames the HAL files to include
+     */
+    public static HalManifest forLocalFiles(File directory, List<String> fileNames) throws IOException {
+        HalManifest manifest = new HalManifest();
+        for ( String fileName : fileNames ) {
+            manifest.hashes.put(fileName, hash(new File(directory, fileName)));
+        }
+        return manifest;
+    }
+
+    /**
+     * @param text the content of a manifest file, may be empty if the robot has none yet
+     */
+    public static HalManifest parse(String text) {
+        HalManifest manifest = new HalManifest();
+        if ( text == null ) {
+            return manifest;
+        }
+        for ( String line : text.split("\n") ) {
+            String[] parts = line.trim().split("\\s+", 2);
+            if ( parts.length == 2 ) {
+                manifest.hashes.put(parts[1], parts[0]);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the names of all files of this manifest which are missing or different in the other one
+     */
+    public List<String> changedFiles(HalManifest other) {
+        List<String> changed = new ArrayList<>();
+        for ( Map.Entry<String, String> entry : this.hashes.entrySet() ) {
+            if ( other == null || !entry.getValue().equals(other.hashes.get(entry.getKey())) ) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        for ( Map.Entry<String, String> entry : this.hashes.entrySet() ) {
+            sb.append(entry.getValue()).append("  ").append(entry.getKey()).append("\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String hash(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        CachedHash cached = localHashes.get(key);
+        if ( cached != null && cached.size == file.length() && cached.lastModified == file.lastModified() ) {
+            return cached.hash;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ( (len = in.read(buffer)) >= 0 ) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        String hash = toHex(digest.digest());
+        localHashes.put(key, new CachedHash(file.length(), file.lastModified(), hash));
+        return hash;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for ( byte b : bytes ) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static class CachedHash {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        CachedHash(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+import de.fhg.iais.roberta.util.Utils;
+
+/**
+ * Local store of the HALs downloaded from the server, one directory per firmware version:
+ *
+ * <pre>
+ * OpenRoberta/hal/2-1/roberta.zip
+ * OpenRoberta/hal/2-1/roberta/...
+ * OpenRoberta/hal/2-8/roberta.zip
+ * OpenRoberta/hal/2-8/roberta/...
+ * </pre>
+ *
+ * Switching between robots with different firmware does not replace the HAL, and a robot can be served from the store while the server is unreachable.
+ * The least recently used versions are removed if there are more than the capacity of the store. The store also remembers which servers answer
+ * conditional HAL requests, in servers.properties.
+ */
+public class HalStore {
+    public static final String ZIP_NAME = "roberta.zip";
+    public static final String HAL_DIRECTORY = "roberta";
+
+    private static final int DEFAULT_CAPACITY = 4;
+    private static final String LAST_USED = ".last_used";
+    private static final String SERVERS = "servers.properties";
+
+    private static Logger log = Logger.getLogger("Connector");
+
+    private final File root;
+    private final int capacity;
+
+    public HalStore(File root, int capacity) {
+        this.root = root;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the store in the working directory of the connector
+     */
+    public static HalStore getDefault() {
+        return new HalStore(new File(Utils.getWorkingDirectory(), "hal"), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return the firmware versions in the store
+     */
+    public List<String> getVersions() {
+        List<String> versions = new ArrayList<>();
+        File[] dirs = this.root.listFiles();
+        if ( dirs != null ) {
+            for ( File dir : dirs ) {
+                if ( dir.isDirectory() ) {
+                    versions.add(dir.getName());
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * @return the directory of the firmware version, the zip and the extracted HAL are kept there
+     */
+    public File getVersionDirectory(String firmware) {
+        return new File(this.root, firmware.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    public File getZip(String firmware) {
+        return new File(getVersionDirectory(firmware), ZIP_NAME);
+    }
+
+    /**
+     * @return the directory containing the extracted HAL files
+     */
+    public File getHalDirectory(String firmware) {
+        return new File(getVersionDirectory(firmware), HAL_DIRECTORY);
+    }
+
+    /**
+     * @return true if a complete HAL for the firmware version is in the store
+     */
+    public boolean contains(String firmware) {
+        return getZip(firmware).isFile() && getHalDirectory(firmware).isDirectory();
+    }
+
+    /**
+     * Mark the firmware version as recently used.
+     */
+    public void touch(String firmware) {
+        File marker = new File(getVersionDirectory(firmware), LAST_USED);
+        try {
+            FileUtils.touch(marker);
+        } catch ( IOException e ) {
+            log.info("Could not mark HAL " + firmware + " as used: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param server the url of the server
+     * @return whether the server answers conditional HAL requests, null if this is not known
+     */
+    public Boolean getConditionalRequests(String server) {
+        String supported = loadServers().getProperty(server);
+        return supported == null ? null : Boolean.valueOf(supported);
+    }
+
+    /**
+     * Remember whether the server answers conditional HAL requests.
+     */
+    public void setConditionalRequests(String server, boolean supported) {
+        Properties servers = loadServers();
+        if ( Boolean.toString(supported).equals(servers.getProperty(server)) ) {
+            return;
+        }
+        servers.setProperty(server, Boolean.toString(supported));
+        this.root.mkdirs();
+        try (OutputStream out = new FileOutputStream(new File(this.root, SERVERS))) {
+            servers.store(out, "whether the servers answer conditional HAL requests");
+        } catch ( IOException e ) {
+            log.info("Could not store the servers of the HAL store: " + e.getMessage());
+        }
+    }
+
+    private Properties loadServers() {
+        Properties servers = new Properties();
+        File file = new File(this.root, SERVERS);
+        if ( file.isFile() ) {
+            try (InputStream in = new FileInputStream(file)) {
+                servers.load(in);
+            } catch ( IOException e ) {
+                servers.clear();
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Remove the least recently used versions if the store is full. The given version is kept in any case.
+     */
+    public void evict(String keep) {
+        final File kept = getVersionDirectory(keep);
+        File[] versions = this.root.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && !file.equals(kept);
+            }
+        });
+        if ( versions == null || versions.length < this.capacity ) {
+            return;
+        }
+        Arrays.sort(versions, new Comparator<File>() {
+            @Override
+            public int compare(File v1, File v2) {
+                return Long.compare(new File(v1, LAST_USED).lastModified(), new File(v2, LAST_USED).lastModified());
+            }
+        });
+        for ( int i = 0; i <= versions.length - this.capacity; i++ ) {
+            FileUtils.deleteQuietly(versions[i]);
+            log.info("HAL " + versions[i].getName() + " evicted from the local store");
+        }
+    }
+}
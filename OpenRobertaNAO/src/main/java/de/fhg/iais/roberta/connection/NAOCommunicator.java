@@ -1,43 +1,65 @@
 package de.fhg.iais.roberta.connection;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.lang3.SystemUtils;
+import org.apache.commons.io.IOUtils;
 import org.json.JSONObject;
 
 import com.jcraft.jsch.JSchException;
 
 import de.fhg.iais.roberta.util.SshConnection;
+import de.fhg.iais.roberta.util.TarWriter;
 
 public class NAOCommunicator {
 
     private static Logger log = Logger.getLogger("Connector");
+    private static final List<String> HAL_FILES =
+        Arrays.asList("__init__.py", "blockly_methods.py", "original_hal.py", "speech_recognition_module.py", "face_recognition_module.py");
+
     private String ip;
     private String userName;
     private String password;
 
     int sshPort = 22;
 
-    private String halZipPath;
-    private String workingDirectory;
+    private final HalStore halStore = HalStore.getDefault();
+    private final DeviceProfiles deviceProfiles = DeviceProfiles.getDefault();
+    private volatile DeviceProfiles.Profile profile;
     private SshConnection ssh;
     private String firmwareversion;
+    private DeploymentMode deploymentMode = DeploymentMode.TAR_GZIP;
+    private HalManifest remoteHalManifest;
+    private final ProgramCache programCache;
+    private boolean programCacheSynced = false;
+    private NAOStateMonitor stateMonitor;
+    private boolean monitored = false;
+    private WarmRunner warmRunner;
+    private boolean compileHal = false;
+
+    /**
+     * changes whenever the content of {@link #getDeviceInfo()} may have changed
+     */
+    private volatile int deviceInfoRevision = 0;
 
     public NAOCommunicator(String ip, String username, String password) {
         this.ip = ip;
         this.userName = username;
         this.password = password;
 
-        if ( SystemUtils.IS_OS_WINDOWS ) {
-            this.halZipPath = System.getenv("APPDATA") + "/OpenRoberta/roberta.zip";
-            this.workingDirectory = System.getenv("APPDATA") + "/OpenRoberta/";
-        } else {
-            this.halZipPath = System.getProperty("user.home") + "/OpenRoberta/roberta.zip";
-            this.workingDirectory = System.getProperty("user.home") + "/OpenRoberta/";
-        }
+        this.programCache = new ProgramCache(32);
 
     }
 
@@ -45,76 +67,566 @@ public class NAOCommunicator {
         return this.ip;
     }
 
+    /**
+     * @param deploymentMode how the HAL and the program are transferred to the robot
+     */
+    public void setDeploymentMode(DeploymentMode deploymentMode) {
+        this.deploymentMode = deploymentMode;
+    }
+
+    /**
+     * @param warm true to run the programs in a {@link WarmRunner} on the robot, false to start a new python for each program
+     */
+    public void setWarmRunner(boolean warm) {
+        this.warmRunner = null;
+        if ( warm ) {
+            try {
+                this.warmRunner = new WarmRunner();
+            } catch ( IOException e ) {
+                log.info("Programs are started with a cold python: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param compileHal true to byte-compile the HAL on the robot whenever it was updated and before a program is launched if it is not compiled
+     */
+    public void setCompileHal(boolean compileHal) {
+        this.compileHal = compileHal;
+    }
+
     public void uploadFile(byte[] binaryfile, String fileName) throws Exception {
-        List<String> fileNames = new ArrayList<>();
-        fileNames.add("__init__.py");
-        fileNames.add("blockly_methods.py");
-        fileNames.add("original_hal.py");
-        fileNames.add("speech_recognition_module.py");
-        fileNames.add("face_recognition_module.py");
+        String hash = ProgramCache.hash(binaryfile);
         try {
-            this.ssh = new SshConnection(this.ip, this.sshPort, this.userName, this.password);
-            this.ssh.createSession();
+            this.ssh = getSshConnection();
+            this.ssh.connect();
+            HalManifest localManifest = HalManifest.forLocalFiles(this.halStore.getHalDirectory(this.firmwareversion), HAL_FILES);
+            List<String> changedHalFiles = prepareDeployment(localManifest);
+            ProgramUpload program = null;
+            List<String> evicted = Collections.emptyList();
+            if ( !this.programCache.isOnRobot(hash) ) {
+                program = new ProgramUpload(ProgramCache.remoteFileName(hash), binaryfile);
+                evicted = this.programCache.addToRobot(hash);
+            }
+            if ( program != null || !changedHalFiles.isEmpty() ) {
+                transfer(changedHalFiles, localManifest, program, evicted);
+            }
+            this.remoteHalManifest = localManifest;
+            log.info("Launching " + fileName + " as " + ProgramCache.remoteFileName(hash));
+            launch(ProgramCache.remoteFileName(hash), null);
+        } catch ( Exception e ) {
+            this.remoteHalManifest = null;
+            this.programCacheSynced = false;
+            this.ssh.invalidate();
+            throw e;
+        } finally {
+            this.ssh.disconnect();
+        }
+        log.info("file transferred");
+
+    }
+
+    /**
+     * Stream a program to the robot while it is still being downloaded, nothing is buffered in memory. The hash for the program cache is computed on the
+     * fly, the program is moved to its place in the cache right before it is launched.
+     *
+     * @param program the content of the program, e.g. the body of the http response
+     * @param length the number of bytes of the program, if it is not known (-1) the program is buffered
+     */
+    public void uploadFile(InputStream program, long length, String fileName) throws Exception {
+        if ( length < 0 ) {
+            log.info("Length of " + fileName + " unknown - buffering it");
+            uploadFile(IOUtils.toByteArray(program), fileName);
+            return;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try {
+            this.ssh = getSshConnection();
             this.ssh.connect();
-            this.ssh.command("rm -rf /home/" + this.userName + "/roberta");
-            this.ssh.command("mkdir -p /home/" + this.userName + "/roberta");
-            for ( String fname : fileNames ) {
-                this.ssh.copyLocalToRemote(this.workingDirectory + "/roberta", "roberta", fname);
+            HalManifest localManifest = HalManifest.forLocalFiles(this.halStore.getHalDirectory(this.firmwareversion), HAL_FILES);
+            List<String> changedHalFiles = prepareDeployment(localManifest);
+            InputStream in = new DigestInputStream(program, digest);
+            transfer(changedHalFiles, localManifest, new ProgramUpload(ProgramCache.REMOTE_INCOMING, in, length), Collections.<String> emptyList());
+            this.remoteHalManifest = localManifest;
+
+            String hash = HalManifest.toHex(digest.digest());
+            // a streamed program is uploaded before its hash is known, even if it is cached already
+            log.fine("Streamed program " + hash + " added to the program cache");
+            List<String> evicted = this.programCache.addToRobot(hash);
+            String home = "/home/" + this.userName + "/";
+            String preparation = "mv -f " + home + ProgramCache.REMOTE_INCOMING + " " + home + ProgramCache.remoteFileName(hash);
+            if ( !evicted.isEmpty() ) {
+                preparation += " && " + removeCommand(evicted);
             }
-            this.ssh.copyLocalToRemote(binaryfile, ".", fileName);
-            String run_command = this.firmwareversion.equals("2-8") ? "eval \"export $(xargs < /etc/conf.d/naoqi)\"; python " : "python ";
-            this.ssh.command(run_command + fileName);
+            log.info("Launching streamed " + fileName + " as " + ProgramCache.remoteFileName(hash));
+            launch(ProgramCache.remoteFileName(hash), preparation);
+        } catch ( Exception e ) {
+            this.remoteHalManifest = null;
+            this.programCacheSynced = false;
+            this.ssh.invalidate();
+            throw e;
         } finally {
             this.ssh.disconnect();
         }
         log.info("file transferred");
+    }
+
+    /**
+     * Bring the robot into a state where a program only has to be transferred and launched: the ssh session is opened and kept in the pool, outdated HAL
+     * files are uploaded and the program cache on the robot is listed. This can run while the program is still downloaded.
+     */
+    public void prepareUpload() throws Exception {
+        try {
+            this.ssh = getSshConnection();
+            this.ssh.connect();
+            HalManifest localManifest = HalManifest.forLocalFiles(this.halStore.getHalDirectory(this.firmwareversion), HAL_FILES);
+            List<String> changedHalFiles = prepareDeployment(localManifest);
+            if ( !changedHalFiles.isEmpty() ) {
+                transfer(changedHalFiles, localManifest, null, Collections.<String> emptyList());
+            }
+            this.remoteHalManifest = localManifest;
+        } catch ( Exception e ) {
+            this.remoteHalManifest = null;
+            this.programCacheSynced = false;
+            this.ssh.invalidate();
+            throw e;
+        } finally {
+            this.ssh.disconnect();
+        }
+    }
+
+    /**
+     * Start the program in the background and record its process id for the {@link NAOStateMonitor}. The command returns as soon as the program is
+     * started. The program goes to the warm runner if it is ready, otherwise it is started with a cold python and the runner is started for the next
+     * program.
+     *
+     * @param preparation a command to run before the program is started in the same channel, may be null
+     */
+    private void launch(String remoteFileName, String preparation) throws JSchException, IOException, InterruptedException {
+        String home = "/home/" + this.userName;
+        String environment = this.firmwareversion.equals("2-8") ? "eval \"export $(xargs < /etc/conf.d/naoqi)\"; " : "";
+        String run_command = preparation == null ? "" : preparation + " && ";
+        run_command += environment;
+        if ( this.compileHal ) {
+            run_command += freshnessCheck();
+        }
+        String coldLaunch =
+            "cd "
+                + home
+                + " && PYTHONPATH="
+                + home
+                + "${PYTHONPATH:+:$PYTHONPATH} nohup python "
+                + remoteFileName
+                + " > /tmp/roberta_program.log 2>&1 < /dev/null & echo $! > "
+                + NAOStateMonitor.PID_FILE;
+        if ( this.warmRunner == null || this.remoteHalManifest == null ) {
+            logCompilation(this.ssh.command(run_command + coldLaunch));
+            return;
+        }
+        String version = this.warmRunner.version(this.remoteHalManifest);
+        String reply = this.ssh.command(run_command + this.warmRunner.launchCommand(home + "/" + remoteFileName, version, coldLaunch));
+        logCompilation(reply);
+        if ( reply.contains("warm") ) {
+            log.info("Program handed to the warm runner " + version);
+        } else if ( reply.contains("cold") ) {
+            startRunner(version, environment);
+        }
+    }
+
+    /**
+     * A command compiling the HAL if a source file is newer than its bytecode, e.g. because another connector updated the HAL. It prints "compiled" then.
+     */
+    private String freshnessCheck() {
+        String halDirectory = getRemoteHalDirectory();
+        return "for f in "
+            + halDirectory
+            + "/*.py; do [ \"${f}c\" -nt \"$f\" ] || { python -m compileall -q "
+            + halDirectory
+            + " > /dev/null 2>&1; echo compiled; break; }; done; ";
+    }
+
+    private static void logCompilation(String launchReply) {
+        if ( launchReply.contains("compiled") ) {
+            log.info("HAL bytecode was outdated - compiled it before the launch");
+        }
+    }
+
+    /**
+     * Byte-compile the HAL on the robot after it was updated, so that programs do not compile it on the slow cpu of the robot. Python only compiles the
+     * files whose bytecode is outdated.
+     */
+    private void compileHal() throws JSchException, IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int exitStatus = this.ssh.exec("python -m compileall -q " + getRemoteHalDirectory(), out, out);
+        if ( exitStatus == 0 ) {
+            log.info("HAL compiled on the robot in " + (System.currentTimeMillis() - start) + " ms");
+        } else {
+            log.info("Compiling the HAL failed with exit status " + exitStatus + ": " + out.toString());
+        }
+    }
+
+    /**
+     * Upload the runner script and start the runner of the version in the background, unless it is running already. Called after a cold launch, so the
+     * program is not delayed.
+     */
+    private void startRunner(String version, String environment) {
+        final byte[] script = this.warmRunner.getScript();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        try {
+            int exitStatus =
+                this.ssh.exec(this.warmRunner.startCommand("/home/" + this.userName, version, environment), new SshConnection.StdinWriter() {
+                    @Override
+                    public void writeTo(OutputStream stdin) throws IOException {
+                        stdin.write(script);
+                    }
+                }, new ByteArrayOutputStream(), err);
+            if ( exitStatus == 0 ) {
+                log.info("Warm runner " + version + " is starting");
+            } else {
+                log.info("Warm runner could not be started: " + err.toString());
+            }
+        } catch ( JSchException | IOException | InterruptedException e ) {
+            log.info("Warm runner could not be started: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Find out which HAL files have to be updated and what the program cache on the robot contains.
+     *
+     * @return the names of the HAL files which differ on the robot
+     */
+    private List<String> prepareDeployment(HalManifest localManifest) throws JSchException, IOException, InterruptedException {
+        readRobotState();
+        List<String> changedHalFiles = localManifest.changedFiles(this.remoteHalManifest);
+        if ( changedHalFiles.isEmpty() ) {
+            log.info("HAL on the robot is up to date");
+        } else {
+            log.info("HAL files to update: " + changedHalFiles);
+        }
+        return changedHalFiles;
     }
 
+    /**
+     * Transfer the changed HAL files and the program with the configured deployment mode. If the robot cannot extract a tar stream, scp is used instead,
+     * as long as the program can be read a second time.
+     */
+    private void transfer(List<String> changedHalFiles, HalManifest localManifest, ProgramUpload program, List<String> evicted) throws Exception {
+        boolean transferred = false;
+        if ( this.deploymentMode != DeploymentMode.SCP ) {
+            transferred = uploadTar(changedHalFiles, localManifest, program, evicted);
+            if ( !transferred && program != null && !program.isRepeatable() ) {
+                throw new IOException("tar deployment of the streamed program failed");
+            }
+        }
+        if ( !transferred ) {
+            uploadScp(changedHalFiles, localManifest, program, evicted);
+        }
+        if ( this.compileHal && !changedHalFiles.isEmpty() ) {
+            // once per HAL version, the launch only checks that the bytecode is fresh
+            compileHal();
+        }
+    }
+
+    /**
+     * The manifest of the HAL and the program cache on the robot are read once per connection, both in one round trip. Afterwards the manifest is kept up
+     * to date by the uploads and the connector keeps track of the program cache on its own.
+     */
+    private void readRobotState() throws JSchException, IOException, InterruptedException {
+        boolean readManifest = this.remoteHalManifest == null;
+        boolean listPrograms = !this.programCacheSynced;
+        List<String> commands = new ArrayList<>();
+        if ( readManifest ) {
+            commands.add("cat " + getRemoteHalDirectory() + "/" + HalManifest.FILE_NAME);
+        }
+        if ( listPrograms ) {
+            commands.add("ls -1 /home/" + this.userName + "/" + ProgramCache.REMOTE_DIRECTORY);
+        }
+        if ( commands.isEmpty() ) {
+            return;
+        }
+        List<SshConnection.BatchStep> steps = this.ssh.execBatch(commands, false);
+        int step = 0;
+        if ( readManifest ) {
+            this.remoteHalManifest = HalManifest.parse(steps.get(step++).getOutputIfSucceeded());
+        }
+        if ( listPrograms ) {
+            this.programCache.syncWithRobot(Arrays.asList(steps.get(step).getOutputIfSucceeded().split("\n")));
+            this.programCacheSynced = true;
+        }
+    }
+
+    private String getRemoteHalDirectory() {
+        return "/home/" + this.userName + "/roberta";
+    }
+
+    private void uploadScp(List<String> changedHalFiles, HalManifest localManifest, ProgramUpload program, List<String> evicted) throws Exception {
+        this.ssh.command("mkdir -p " + getRemoteHalDirectory() + " /home/" + this.userName + "/" + ProgramCache.REMOTE_DIRECTORY);
+        for ( String fname : changedHalFiles ) {
+            this.ssh.copyLocalToRemote(this.halStore.getHalDirectory(this.firmwareversion).getPath(), "roberta", fname);
+        }
+        if ( !changedHalFiles.isEmpty() ) {
+            this.ssh.copyLocalToRemote(localManifest.toBytes(), "roberta", HalManifest.FILE_NAME);
+        }
+        if ( program != null ) {
+            String remoteName = program.getRemoteName();
+            int slash = remoteName.lastIndexOf('/');
+            this.ssh.copyLocalToRemote(program.open(), program.getLength(), remoteName.substring(0, slash), remoteName.substring(slash + 1));
+        }
+        if ( !evicted.isEmpty() ) {
+            this.ssh.command(removeCommand(evicted));
+        }
+    }
+
+    /**
+     * Transfer the changed HAL files and the program (if it is not cached on the robot) as one tar stream, extracted by a single remote command. The
+     * manifest is the last entry, so an interrupted transfer leaves files behind which are detected as outdated next time.
+     *
+     * @param program the program to upload or null if it is already on the robot
+     * @param evicted hashes of programs to be removed from the robot's cache
+     * @return false if the robot could not extract the archive, the caller should fall back to scp then
+     */
+    private boolean uploadTar(final List<String> changedHalFiles, final HalManifest localManifest, final ProgramUpload program, List<String> evicted)
+        throws Exception {
+        final boolean gzip = this.deploymentMode == DeploymentMode.TAR_GZIP;
+        String home = "/home/" + this.userName;
+        String command =
+            "mkdir -p " + getRemoteHalDirectory() + " " + home + "/" + ProgramCache.REMOTE_DIRECTORY + " && tar x" + (gzip ? "z" : "") + "f - -C " + home;
+        if ( !evicted.isEmpty() ) {
+            command += " && " + removeCommand(evicted);
+        }
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        int exitStatus = this.ssh.exec(command, new SshConnection.StdinWriter() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                OutputStream out = gzip ? new GZIPOutputStream(stdin, 8192) : stdin;
+                TarWriter tar = new TarWriter(out);
+                if ( program != null ) {
+                    tar.putFile(program.getRemoteName(), program.open(), program.getLength(), System.currentTimeMillis());
+                }
+                for ( String fname : changedHalFiles ) {
+                    tar.putFile("roberta/" + fname, new File(NAOCommunicator.this.halStore.getHalDirectory(NAOCommunicator.this.firmwareversion), fname));
+                }
+                if ( !changedHalFiles.isEmpty() ) {
+                    tar.putFile("roberta/" + HalManifest.FILE_NAME, localManifest.toBytes(), System.currentTimeMillis());
+                }
+                tar.finish();
+                if ( gzip ) {
+                    ((GZIPOutputStream) out).finish();
+                }
+            }
+        }, new ByteArrayOutputStream(), err);
+        if ( exitStatus != 0 ) {
+            log.info("tar deployment failed with exit status " + exitStatus + ": " + err.toString() + " - falling back to scp");
+            return false;
+        }
+        log.info(
+            (program == null ? "Cached program" : "Program")
+                + " and "
+                + changedHalFiles.size()
+                + " HAL files deployed via "
+                + this.deploymentMode
+                + " in "
+                + (System.currentTimeMillis() - start)
+                + " ms");
+        return true;
+    }
+
+    private String removeCommand(List<String> evicted) {
+        StringBuilder sb = new StringBuilder("rm -f");
+        for ( String e : evicted ) {
+            sb.append(" /home/").append(this.userName).append("/").append(ProgramCache.remoteFileName(e));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Connect to the robot and find out its firmware version. A robot known from its host key is not asked, its profile is refreshed in the background if
+     * it is outdated, see {@link DeviceProfiles}.
+     *
+     * @return the firmware version or an empty string if the robot is not reachable
+     */
     public String checkFirmwareVersion() {
         try {
-            this.ssh = new SshConnection(this.ip, this.sshPort, this.userName, this.password);
-            this.ssh.createSession();
+            this.ssh = getSshConnection();
             this.ssh.connect();
-            String msg = this.ssh.command("naoqi-bin --version");
-            String version = msg.split("\n")[0].split(":")[1].trim();
-            this.firmwareversion = version.replace(".", "-");
+            // the HAL may have been changed by someone else since the last connection
+            this.remoteHalManifest = null;
+            this.programCacheSynced = false;
+            String fingerPrint = this.ssh.getHostKeyFingerPrint();
+            DeviceProfiles.Profile known = this.deviceProfiles.get(fingerPrint);
+            if ( known == null ) {
+                known = DeviceProfiles.Profile.parse(this.ssh.command(DeviceProfiles.PROBE_COMMAND));
+                this.deviceProfiles.put(fingerPrint, known);
+                log.info("New robot " + fingerPrint + ": " + known);
+            } else if ( !this.deviceProfiles.isFresh(known) ) {
+                refreshProfile(fingerPrint);
+            }
+            this.firmwareversion = known.getFirmware();
+            this.profile = known;
+            this.deviceInfoRevision++;
+            this.monitored = true;
             return this.firmwareversion;
-        } catch ( JSchException | IOException | InterruptedException e ) {
+        } catch ( JSchException | IOException | InterruptedException | RuntimeException e ) {
             log.info(e.getMessage());
+            this.ssh.invalidate();
             return "";
         } finally {
             this.ssh.disconnect();
         }
     }
 
+    /**
+     * Probe the robot for its profile on a connection of its own. A changed firmware is only logged, the HAL was chosen for the old one and is updated by
+     * the next {@link #checkFirmwareVersion()}.
+     */
+    private void refreshProfile(String fingerPrint) {
+        final String probedIp = this.ip;
+        final String probedUserName = this.userName;
+        final String probedPassword = this.password;
+        this.deviceProfiles.refresh(fingerPrint, new DeviceProfiles.Probe() {
+            @Override
+            public DeviceProfiles.Profile probe() throws Exception {
+                SshConnection connection = new SshConnection(probedIp, NAOCommunicator.this.sshPort, probedUserName, probedPassword);
+                try {
+                    return DeviceProfiles.Profile.parse(connection.command(DeviceProfiles.PROBE_COMMAND));
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        }, new DeviceProfiles.Listener() {
+            @Override
+            public void refreshed(DeviceProfiles.Profile refreshed) {
+                if ( !refreshed.getFirmware().equals(NAOCommunicator.this.firmwareversion) ) {
+                    log.info("Firmware of the robot changed to " + refreshed.getFirmware() + " - the HAL is updated with the next connect");
+                }
+                NAOCommunicator.this.profile = refreshed;
+                NAOCommunicator.this.deviceInfoRevision++;
+            }
+        });
+    }
+
     public void updateRobotInformation(String ip, String userName, String password) throws JSchException, IOException, InterruptedException {
         this.ip = ip;
         this.userName = userName;
         this.password = password;
+        this.profile = null;
+        this.deviceInfoRevision++;
+        this.remoteHalManifest = null;
+        this.programCacheSynced = false;
+        this.programCache.clearRobot();
+        close();
+        if ( this.ssh != null ) {
+            this.ssh.updateRobotInfo(ip, this.sshPort, userName, password);
+        }
+    }
 
+    /**
+     * The connection is kept for the lifetime of the communicator. Its session comes from the shared pool, so repeated operations on the same robot skip
+     * the ssh handshake.
+     */
+    private SshConnection getSshConnection() throws JSchException {
+        if ( this.ssh == null ) {
+            this.ssh = new SshConnection(this.ip, this.sshPort, this.userName, this.password);
+        }
+        return this.ssh;
     }
 
     /**
-     * @return true if a program is currently running, false otherwise
-     * @throws IOException
+     * The state is probed over one long-lived shell on the robot, see {@link NAOStateMonitor}. Before the robot was reached the first time by
+     * {@link #checkFirmwareVersion()} there is nothing to probe and the robot is considered to wait for a program.
+     *
+     * @return the state of the robot
      */
     public NAOState getNAOstate() {
-        return NAOState.WAITING_FOR_PROGRAM;
+        if ( !this.monitored ) {
+            return NAOState.WAITING_FOR_PROGRAM;
+        }
+        if ( this.stateMonitor == null ) {
+            try {
+                this.stateMonitor = new NAOStateMonitor(new SshConnection(this.ip, this.sshPort, this.userName, this.password));
+            } catch ( JSchException e ) {
+                return NAOState.DISCONNECTED;
+            }
+        }
+        return this.stateMonitor.probe();
+    }
+
+    /**
+     * Stop probing the robot and close the channel used for it.
+     */
+    public void close() {
+        this.monitored = false;
+        if ( this.stateMonitor != null ) {
+            this.stateMonitor.close();
+            this.stateMonitor = null;
+        }
+    }
+
+    /**
+     * A program to be transferred to the robot, either from memory or from a stream which can only be read once.
+     */
+    private static class ProgramUpload {
+        private final String remoteName;
+        private final byte[] content;
+        private final InputStream stream;
+        private final long length;
+
+        ProgramUpload(String remoteName, byte[] content) {
+            this.remoteName = remoteName;
+            this.content = content;
+            this.stream = null;
+            this.length = content.length;
+        }
+
+        ProgramUpload(String remoteName, InputStream stream, long length) {
+            this.remoteName = remoteName;
+            this.content = null;
+            this.stream = stream;
+            this.length = length;
+        }
+
+        /**
+         * @return the file name relative to the robot's home directory
+         */
+        String getRemoteName() {
+            return this.remoteName;
+        }
+
+        long getLength() {
+            return this.length;
+        }
+
+        boolean isRepeatable() {
+            return this.content != null;
+        }
+
+        InputStream open() {
+            return this.content != null ? new ByteArrayInputStream(this.content) : this.stream;
+        }
     }
 
     public JSONObject getDeviceInfo() {
         JSONObject deviceInfo = new JSONObject();
+        DeviceProfiles.Profile known = this.profile;
 
         deviceInfo.put("firmwarename", "Nao");
         deviceInfo.put("robot", "nao");
         deviceInfo.put("firmwareversion", this.firmwareversion);
-        deviceInfo.put("macaddr", "usb");
-        deviceInfo.put("brickname", "nao");
+        deviceInfo.put("macaddr", known == null || known.getMac().isEmpty() ? "usb" : known.getMac());
+        deviceInfo.put("brickname", known == null || known.getHostname().isEmpty() ? "nao" : known.getHostname());
         deviceInfo.put("battery", "1.0");
         return deviceInfo;
     }
 
+    /**
+     * @return a number which changes whenever the device info changes, so that a serialised device info can be reused until then
+     */
+    public int getDeviceInfoRevision() {
+        return this.deviceInfoRevision;
+    }
+
     public String getFirmwareVersion() {
         return this.firmwareversion;
     }
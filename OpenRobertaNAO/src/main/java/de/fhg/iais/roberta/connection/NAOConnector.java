@@ -1,46 +1,163 @@
 package de.fhg.iais.roberta.connection;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
+import java.util.Queue;
 import java.util.ResourceBundle;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
-import de.fhg.iais.roberta.ui.ORAPopup;
+import org.apache.http.HttpEntity;
 import org.json.JSONObject;
 
 import com.jcraft.jsch.JSchException;
 
 import de.fhg.iais.roberta.util.ORAtokenGenerator;
-import net.lingala.zip4j.exception.ZipException;
+import de.fhg.iais.roberta.util.SshSessionPool;
 
 public class NAOConnector extends Observable implements Runnable, Connector {
 
     private String serverIp = "localhost";
     private String serverPort = "1999";
+    private String serverAddresses = null;
     private final String serverAddress;
+    private DeploymentMode deploymentMode = DeploymentMode.TAR_GZIP;
+    private boolean streamPrograms = false;
+    private boolean warmRunner = true;
+    private boolean compileHal = false;
 
-    private String robotIp = "";
-    private String robotUserName = "";
-    private String robotPassword = "";
+    private volatile String robotIp = "";
+    private volatile String robotUserName = "";
+    private volatile String robotPassword = "";
 
     private static Logger log = Logger.getLogger("Connector");
 
+    private static final Object HAL_LOCK = new Object();
+
     private NAOCommunicator naocomm;
-    private ServerCommunicator servcomm;
+    private final ServerCommunicator servcomm;
+    private final PushRequestBody pushRequestBody = new PushRequestBody();
+    private final ExecutorService sshWorkers;
+    private final boolean sharedResources;
 
-    private State state = State.DISCOVER; // First state when program starts
-    private String token = "";
-    private String brickName = "";
+    private volatile State state = State.DISCOVER; // First state when program starts
+    private volatile String token = "";
+    private volatile String brickName = "";
     private String macAddr = "";
-    private boolean userDisconnect = false;
+    private volatile boolean userDisconnect = false;
+    private volatile boolean running = true;
+    private volatile boolean closing = false;
+    private boolean pendingConnect = false;
+
+    /**
+     * the stored registration is looked at once, when the robot is discovered the first time, see {@link SessionRecord}
+     */
+    private boolean resumeChecked = false;
+    private long sessionSavedAt = 0;
+
+    /**
+     * the command of the next push request, {@link #CMD_ISRUNNING} to tell the server that a program is running
+     */
+    private String reportedCmd = CMD_PUSH;
+
+    /**
+     * the push request with {@link #CMD_ISRUNNING} pending at the server while a program runs, and its command
+     */
+    private ServerRequest<String> runningReport = null;
+    private String runningReportCmd = CMD_ISRUNNING;
+
+    /**
+     * the generation of the server endpoints when the token was registered, see {@link ServerEndpoints#getGeneration()}
+     */
+    private int registeredGeneration = 0;
+
+    /**
+     * push requests answered with {@link #CMD_ABORT} since the last regular answer, the token is registered again once before it is given up
+     */
+    private int abortsInARow = 0;
+    private boolean registerAgain = false;
+
+    /**
+     * Actions from the gui, processed by the connector thread. The thread blocks on this queue whenever it has nothing else to do.
+     */
+    private final BlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+
+    private enum Command {
+        CONNECT, DISCONNECT, CLOSE,
+        /**
+         * the server address or the robot information was changed, see {@link NAOConnector#settings}
+         */
+        SETTINGS,
+        /**
+         * a request to the server was answered, not from the gui
+         */
+        SERVER_RESPONSE
+    }
+
+    /**
+     * Changes of the server address and the robot information from the gui. They are applied by the connector thread between two states, never while
+     * it talks to the server or the robot.
+     */
+    private final Queue<Runnable> settings = new ConcurrentLinkedQueue<>();
 
     public NAOConnector(ResourceBundle serverProps) {
+        this(serverProps, null, null);
+    }
+
+    /**
+     * Create a connector which shares its http connections and ssh workers with other connectors of the same process, see {@link NAOFleet}.
+     *
+     * @param serverProps the server settings
+     * @param connections the http connections for the server communication, null to create own ones
+     * @param sshWorkers the threads running the ssh operations of all robots, null to run them in the connector thread
+     */
+    public NAOConnector(ResourceBundle serverProps, ServerConnectionPool connections, ExecutorService sshWorkers) {
         if ( serverProps != null ) {
             this.serverIp = serverProps.getString("serverIp");
             this.serverPort = serverProps.getString("serverPort");
+            if ( serverProps.containsKey("serverAddresses") ) {
+                this.serverAddresses = serverProps.getString("serverAddresses").trim();
+            }
+            if ( serverProps.containsKey("deploymentMode") ) {
+                this.deploymentMode = DeploymentMode.fromProperty(serverProps.getString("deploymentMode"));
+            }
+            if ( serverProps.containsKey("programTransfer") ) {
+                this.streamPrograms = serverProps.getString("programTransfer").trim().equalsIgnoreCase("stream");
+            }
+            if ( serverProps.containsKey("programRunner") ) {
+                this.warmRunner = !serverProps.getString("programRunner").trim().equalsIgnoreCase("cold");
+            }
+            if ( serverProps.containsKey("compileHal") ) {
+                this.compileHal = Boolean.parseBoolean(serverProps.getString("compileHal").trim());
+            }
         }
-        this.serverAddress = this.serverIp + ":" + this.serverPort;
+        this.serverAddress = this.serverAddresses != null ? this.serverAddresses : this.serverIp + ":" + this.serverPort;
+        this.servcomm = new ServerCommunicator(this.serverAddress, connections == null ? new ServerConnectionPool(serverProps) : connections);
+        this.sshWorkers = sshWorkers;
+        this.sharedResources = connections != null;
+    }
+
+    /**
+     * Use the communicator for the robot instead of creating one when the robot is discovered, e.g. to run the connector against a simulated robot.
+     */
+    void setCommunicator(NAOCommunicator naocomm) {
+        this.naocomm = naocomm;
     }
 
     @Override
@@ -52,166 +169,608 @@ public class NAOConnector extends Observable implements Runnable, Connector {
     @Override
     public void run() {
         log.config("Starting  Connector Thread.");
-        this.servcomm = new ServerCommunicator(this.serverAddress);
         log.config("Server address " + this.serverAddress);
-        NAOState naoState;
-        while ( true ) {
+        while ( this.running ) {
+            applySettings();
             switch ( this.state ) {
                 case DISCOVER:
-                    DiscoverNAO discoverNAO = new DiscoverNAO();
-                    if ( discoverNAO.discover() ) {
-                        this.naocomm = discoverNAO.createCommunicator(this.robotIp, this.robotUserName, this.robotPassword);
-                        if ( this.token.equals("") ) {
-                            this.state = State.WAIT_FOR_CONNECT_BUTTON_PRESS;
-                            notifyConnectionStateChanged(this.state);
-                        }
-
-                    } else {
-                        log.info("No NAO device connected");
-                        sleepUntilNextStep(1000);
-                    }
+                    discover();
+                    break;
+                case RECONNECT:
+                    reconnect();
                     break;
                 case WAIT_FOR_CONNECT_BUTTON_PRESS:
-                    // GUI initiates changing state to CONNECT
-                    naoState = this.naocomm.getNAOstate();
-                    if ( naoState == NAOState.PROGRAM_RUNNING || naoState == NAOState.DISCONNECTED ) {
-                        reset(null);
-                        log.info("RESET CONNECTION BECAUSE " + naoState);
-                        break;
-                    }
-                    sleepUntilNextStep(1000);
+                    waitForConnectButtonPress();
                     break;
                 case CONNECT_BUTTON_IS_PRESSED:
-                    boolean robotAvailable = false;
-                    try {
-                        String firmware = this.naocomm.checkFirmwareVersion();
-                        if (!firmware.isEmpty()) {
-                            robotAvailable = true;
-                            if (!this.servcomm.verifyHalChecksum(firmware)) {
-                                this.servcomm.updateHal(firmware);
-                            }
-                        }
-                    } catch ( NoSuchAlgorithmException | ZipException | IOException e ) {
-                        e.printStackTrace();
-                    }
+                    register();
+                    break;
+                case WAIT_FOR_CMD:
+                    waitForCmd();
+                    break;
+                case WAIT_EXECUTION:
+                    waitExecution();
+                    break;
+                default:
+                    // nothing to do in this state until the user acts
+                    handleCommand(takeCommand(0));
+                    break;
+            }
+        }
+        log.config("Connector Thread stopped.");
+    }
 
-                    if (robotAvailable) {
-                        this.token = ORAtokenGenerator.generateToken();
-                        this.state = State.WAIT_FOR_SERVER;
-                        notifyConnectionStateChanged(this.state);
+    private void discover() {
+        DiscoverNAO discoverNAO = new DiscoverNAO();
+        if ( discoverNAO.discover(this.robotIp) ) {
+            if ( !discoverNAO.getAddress().equals(this.robotIp) ) {
+                applyRobotInformation(
+                    discoverNAO.getAddress(),
+                    this.robotUserName.isEmpty() ? "nao" : this.robotUserName,
+                    this.robotPassword.isEmpty() ? "nao" : this.robotPassword);
+            }
+            if ( this.naocomm == null ) {
+                this.naocomm = discoverNAO.createCommunicator(this.robotIp, this.robotUserName, this.robotPassword);
+                this.naocomm.setDeploymentMode(this.deploymentMode);
+                this.naocomm.setWarmRunner(this.warmRunner);
+                this.naocomm.setCompileHal(this.compileHal);
+            }
+            if ( !this.token.equals("") ) {
+                log.info("Dropping registration " + this.token + " - the robot has to be connected again");
+                resetLastConnectionData();
+            }
+            if ( !this.resumeChecked && !this.robotIp.isEmpty() ) {
+                this.resumeChecked = true;
+                if ( SessionRecord.load(this.robotIp) != null ) {
+                    // the gui is told about the reconnect when it succeeded
+                    log.info("Trying to resume the last registration of " + this.robotIp);
+                    this.state = State.RECONNECT;
+                    return;
+                }
+            }
+            transition(State.WAIT_FOR_CONNECT_BUTTON_PRESS);
+        } else {
+            log.info("No NAO device connected");
+            handleCommand(takeCommand(1000));
+        }
+    }
 
-                        JSONObject deviceInfo = this.naocomm.getDeviceInfo();
+    private void waitForConnectButtonPress() {
+        // GUI initiates changing state to CONNECT
+        if ( this.pendingConnect ) {
+            this.pendingConnect = false;
+            transition(State.CONNECT_BUTTON_IS_PRESSED);
+            return;
+        }
+        Command command = takeCommand(1000);
+        if ( command != null ) {
+            handleCommand(command);
+            return;
+        }
+        NAOState naoState = this.naocomm.getNAOstate();
+        if ( naoState == NAOState.PROGRAM_RUNNING || naoState == NAOState.DISCONNECTED ) {
+            reset(null);
+            log.info("RESET CONNECTION BECAUSE " + naoState);
+        }
+    }
+
+    private void reconnect() {
+        SessionRecord record = SessionRecord.load(this.robotIp);
+        if ( (record == null || !resume(record)) && this.state == State.RECONNECT ) {
+            transition(State.WAIT_FOR_CONNECT_BUTTON_PRESS);
+        }
+    }
+
+    private void register() {
+        SessionRecord record = SessionRecord.load(this.robotIp);
+        if ( record != null && (resume(record) || this.state != State.CONNECT_BUTTON_IS_PRESSED) ) {
+            // resumed or cancelled by the user
+            return;
+        }
+        boolean robotAvailable = false;
+        // hash the local HALs while the robot is asked for its firmware
+        Future<Map<String, String>> localHalChecksums = CompletableFuture.supplyAsync(new Supplier<Map<String, String>>() {
+            @Override
+            public Map<String, String> get() {
+                return NAOConnector.this.servcomm.getLocalHalChecksums();
+            }
+        });
+        try {
+            String firmware = runOnSshWorker(new Callable<String>() {
+                @Override
+                public String call() {
+                    return NAOConnector.this.naocomm.checkFirmwareVersion();
+                }
+            });
+            if ( !firmware.isEmpty() ) {
+                robotAvailable = true;
+                updateHal(firmware, localHalChecksums.get().get(firmware));
+            }
+        } catch ( Exception e ) {
+            e.printStackTrace();
+        }
+
+        if ( !robotAvailable ) {
+            reset(State.ERROR_NOT_FOUND);
+            resetLastConnectionData();
+            return;
+        }
+        this.token = ORAtokenGenerator.generateToken();
+        transition(State.WAIT_FOR_SERVER);
+
+        JSONObject deviceInfo = this.naocomm.getDeviceInfo();
+        if ( deviceInfo == null ) {
+            reset(State.ERROR_BRICK);
+            return;
+        }
+        deviceInfo.put(KEY_TOKEN, this.token);
+        deviceInfo.put(KEY_CMD, CMD_REGISTER);
+        if ( this.commands.remove(Command.DISCONNECT) ) {
+            // the user gave up while the robot was checked
+            resetLastConnectionData();
+            reset(null);
+            return;
+        }
+        // a new registration goes to the fastest server, the connector stays there as long as it is healthy
+        this.servcomm.selectFastestServer();
+        try {
+            // the gui is still served until the server returns command in its response
+            JSONObject serverResponse = await(this.servcomm.pushRequestAsync(deviceInfo));
+            if ( serverResponse == null ) {
+                return;
+            }
+            String command = serverResponse.getString("cmd");
+            if ( command.equals(CMD_REPEAT) ) {
+                log.info("registration successful at " + this.servcomm.getEndpoints().current());
+                this.registeredGeneration = this.servcomm.getEndpoints().getGeneration();
+                this.abortsInARow = 0;
+                this.registerAgain = false;
+                this.brickName = deviceInfo.getString("brickname");
+                this.macAddr = deviceInfo.getString("macaddr");
+                saveSession();
+                transition(State.WAIT_FOR_CMD);
+            } else if ( command.equals(CMD_ABORT) ) {
+                log.info("registration timeout");
+                notifyConnectionStateChanged(State.TOKEN_TIMEOUT);
+                transition(State.DISCOVER);
+            } else {
+                throw new RuntimeException("Unexpected command " + command + "from server");
+            }
+        } catch ( IOException | RuntimeException e ) {
+            log.info("SERVER COMMUNICATION ERROR " + e.getMessage());
+            reset(State.ERROR_HTTP);
+            resetLastConnectionData();
+        }
+    }
 
-                        if (deviceInfo == null) {
-                            reset(State.ERROR_BRICK);
-                            break;
+    /**
+     * Resume the registration of the last run. The server is asked whether it still knows the token while the robot is asked for its firmware. The HAL is
+     * only checked at the server if the firmware or the local HAL changed since the record was saved.
+     *
+     * @return true if the connector waits for commands again, false if it has to register a new token or the user cancelled
+     */
+    private boolean resume(SessionRecord record) {
+        long start = System.currentTimeMillis();
+        Future<String> firmware = startOnSshWorker(new Callable<String>() {
+            @Override
+            public String call() {
+                return NAOConnector.this.naocomm.checkFirmwareVersion();
+            }
+        }, "check-firmware");
+        JSONObject deviceInfo = this.naocomm.getDeviceInfo();
+        deviceInfo.put("firmwareversion", record.getFirmware());
+        deviceInfo.put(KEY_TOKEN, record.getToken());
+        deviceInfo.put(KEY_CMD, CMD_PUSH);
+        int generation = this.servcomm.getEndpoints().getGeneration();
+        try {
+            JSONObject serverResponse = await(this.servcomm.pushRequestAsync(deviceInfo));
+            if ( serverResponse == null ) {
+                firmware.cancel(true);
+                return false;
+            }
+            String command = serverResponse.getString(KEY_CMD);
+            if ( command.equals(CMD_ABORT) ) {
+                log.info("The server does not know the token " + record.getToken() + " anymore");
+                SessionRecord.delete(this.robotIp);
+                return false;
+            }
+            String robotFirmware = firmware.get();
+            if ( robotFirmware.isEmpty() ) {
+                log.info("The robot of the last registration is not reachable");
+                return false;
+            }
+            String localChecksum = this.servcomm.getLocalHalChecksum(robotFirmware);
+            if ( !robotFirmware.equals(record.getFirmware()) || localChecksum == null || !localChecksum.equals(record.getHalChecksum()) ) {
+                updateHal(robotFirmware, localChecksum);
+            }
+            if ( !command.equals(CMD_REPEAT) ) {
+                log.info("Ignoring " + command + " while resuming - the user has to repeat it");
+            }
+            this.token = record.getToken();
+            this.brickName = deviceInfo.getString("brickname");
+            this.macAddr = deviceInfo.getString("macaddr");
+            this.registeredGeneration = generation;
+            this.abortsInARow = 0;
+            this.registerAgain = false;
+            saveSession();
+            log.info("Resumed registration " + this.token + " in " + (System.currentTimeMillis() - start) + " ms");
+            transition(State.RECONNECT);
+            transition(State.WAIT_FOR_CMD);
+            return true;
+        } catch ( IOException | RuntimeException | ExecutionException e ) {
+            log.info("Could not resume the last registration: " + e.getMessage());
+            firmware.cancel(true);
+            return false;
+        } catch ( InterruptedException e ) {
+            firmware.cancel(true);
+            this.running = false;
+            return false;
+        }
+    }
+
+    /**
+     * Update the HAL of the firmware from the server. If the server is not reachable, a stored HAL is good enough.
+     */
+    private void updateHal(String firmware, String localChecksum) throws IOException {
+        // the HAL directory is shared by all connectors of this process
+        synchronized ( HAL_LOCK ) {
+            try {
+                this.servcomm.updateHal(firmware, localChecksum);
+            } catch ( IOException e ) {
+                if ( !this.servcomm.hasLocalHal(firmware) ) {
+                    throw e;
+                }
+                log.info("HAL could not be updated (" + e.getMessage() + "), using the stored HAL " + firmware);
+            }
+        }
+    }
+
+    /**
+     * Store the registration, so that it can be resumed after a restart. A stored registration is refreshed from time to time, see
+     * {@link SessionRecord#MAX_AGE}.
+     */
+    private void saveSession() {
+        String firmware = this.naocomm.getFirmwareVersion();
+        new SessionRecord(this.token, this.robotIp, firmware, this.servcomm.getLocalHalChecksum(firmware), this.brickName).save();
+        this.sessionSavedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the command of the next push request, {@link #CMD_REGISTER} instead of the given one after a failover to another server or an abort
+     */
+    private String pushCommand(String cmd) {
+        if ( this.servcomm.getEndpoints().getGeneration() != this.registeredGeneration || this.registerAgain ) {
+            // failover to another server, which does not know the token yet, or a server which lost it
+            this.registerAgain = false;
+            log.info("Registering token " + this.token + " at " + this.servcomm.getEndpoints().current());
+            this.registeredGeneration = this.servcomm.getEndpoints().getGeneration();
+            return CMD_REGISTER;
+        }
+        return cmd;
+    }
+
+    private void waitForCmd() {
+        String sentCmd = pushCommand(this.reportedCmd);
+        HttpEntity pushBody = this.pushRequestBody.get(this.naocomm, this.token, sentCmd);
+        this.reportedCmd = CMD_PUSH;
+        if ( pushBody == null ) {
+            reset(State.ERROR_BRICK);
+            return;
+        }
+        try {
+            // waits until the server answers, a disconnect cancels the request
+            String serverCommand = await(this.servcomm.pushCommandAsync(pushBody));
+            if ( serverCommand == null ) {
+                return;
+            }
+            if ( !serverCommand.equals(CMD_ABORT) && System.currentTimeMillis() - this.sessionSavedAt > SessionRecord.MAX_AGE / 4 ) {
+                saveSession();
+            }
+            if ( !serverCommand.equals(CMD_ABORT) && !sentCmd.equals(CMD_REGISTER) ) {
+                this.abortsInARow = 0;
+            }
+            if ( serverCommand.equals(CMD_REPEAT) ) {
+                return;
+            } else if ( serverCommand.equals(CMD_ABORT) ) {
+                serverAborted(sentCmd);
+            } else if ( serverCommand.equals(CMD_ISRUNNING) ) {
+                // answered by the command of the next push request
+                this.reportedCmd = this.naocomm.getNAOstate() == NAOState.PROGRAM_RUNNING ? CMD_ISRUNNING : CMD_PUSH;
+                log.info("Server asked for the program state, reporting " + this.reportedCmd);
+            } else if ( serverCommand.equals(CMD_CONFIGURATION) || serverCommand.equals(CMD_UPDATE) ) {
+                log.info("Ignoring " + serverCommand + " - not supported by the NAO");
+            } else if ( serverCommand.equals(CMD_DOWNLOAD) || serverCommand.equals(CMD_DOWNLOAD_RUN) ) {
+                log.info("Download user program");
+                JSONObject deviceInfoWaitCMD = this.pushRequestBody.getContent();
+                // for download_run the robot is prepared while the program is downloaded
+                Future<Void> preparation = serverCommand.equals(CMD_DOWNLOAD_RUN) ? prepareUpload() : null;
+                try {
+                    boolean success;
+                    if ( this.streamPrograms ) {
+                        if ( await(streamProgram(deviceInfoWaitCMD, preparation)) == null ) {
+                            return;
                         }
-                        deviceInfo.put(KEY_TOKEN, this.token);
-                        deviceInfo.put(KEY_CMD, CMD_REGISTER);
-                        try {
-                            //Blocks until the server returns command in its response
-                            JSONObject serverResponse = this.servcomm.pushRequest(deviceInfo);
-                            String command = serverResponse.getString("cmd");
-                            if (command.equals(CMD_REPEAT)) {
-
-                                log.info("registration successful");
-                                this.brickName = deviceInfo.getString("brickname");
-                                this.macAddr = deviceInfo.getString("macaddr");
-                                this.state = State.WAIT_FOR_CMD;
-                                notifyConnectionStateChanged(this.state);
-                            } else if (command.equals(CMD_ABORT)) {
-                                log.info("registration timeout");
-                                notifyConnectionStateChanged(State.TOKEN_TIMEOUT);
-                                this.state = State.DISCOVER;
-                                notifyConnectionStateChanged(this.state);
-                            } else {
-                                throw new RuntimeException("Unexpected command " +
-                                                           command +
-                                                           "from server");
-                            }
-                        } catch (IOException e) {
-                            log.info("SERVER COMMUNICATION ERROR " + e.getMessage());
-                            reset(State.ERROR_HTTP);
-                            resetLastConnectionData();
-                        } catch (RuntimeException e) {
-                            log.info("SERVER COMMUNICATION ERROR " + e.getMessage());
-                            reset(State.ERROR_HTTP);
-                            resetLastConnectionData();
+                        success = true;
+                    } else {
+                        byte[] binaryfile = await(this.servcomm.downloadProgramAsync(deviceInfoWaitCMD));
+                        if ( binaryfile == null ) {
+                            return;
                         }
+                        String filename = this.servcomm.getFilename();
+                        success = uploadProgram(binaryfile, filename, preparation);
+                    }
+                    if ( success ) {
+                        log.info("Program started - enter WAIT_EXECUTION state");
+                        transition(State.WAIT_EXECUTION);
                     } else {
-                        reset(State.ERROR_NOT_FOUND);
-                        resetLastConnectionData();
+                        reset(State.ERROR_DOWNLOAD);
                     }
-                    break;
-                case WAIT_FOR_CMD:
-                    JSONObject deviceInfoWaitCMD = this.naocomm.getDeviceInfo();
-                    if ( deviceInfoWaitCMD == null ) {
-                        reset(State.ERROR_BRICK);
-                        break;
+                } catch ( IOException e ) {
+                    log.info("Do not give up yet - make the next push request");
+                    reset(State.ERROR_DOWNLOAD);
+                } finally {
+                    if ( preparation != null ) {
+                        // nothing to wait for anymore if the download failed or was cancelled
+                        preparation.cancel(true);
                     }
-                    deviceInfoWaitCMD.put(KEY_TOKEN, this.token);
-                    deviceInfoWaitCMD.put(KEY_CMD, CMD_PUSH);
-                    naoState = this.naocomm.getNAOstate();
-                    try {
-                        JSONObject pushRequestResponse = this.servcomm.pushRequest(deviceInfoWaitCMD);
-                        if ( pushRequestResponse == null ) {
+                }
+            } else {
+                throw new RuntimeException("Unexpected response from server");
+            }
+        } catch ( RuntimeException | IOException e ) {
+            log.info("WAIT_FOR_CMD " + e.getMessage());
+            resetLastConnectionData();
+            reset(State.ERROR_HTTP);
+        }
+    }
 
-                        }
-                        String serverCommand = pushRequestResponse.getString(KEY_CMD);
-                        if ( serverCommand.equals(CMD_REPEAT) ) {
-                        } else if ( serverCommand.equals(CMD_DOWNLOAD) ) {
-                            log.info("Download user program");
-                            try {
-                                byte[] binaryfile = this.servcomm.downloadProgram(deviceInfoWaitCMD);
-                                String filename = this.servcomm.getFilename();
-                                boolean success = uploadProgram(binaryfile, filename);
-                                if ( success ) {
-                                    this.state = State.WAIT_EXECUTION;
-                                } else {
-                                    reset(State.ERROR_DOWNLOAD);
-                                }
-                            } catch ( IOException e ) {
-                                log.info("Do not give up yet - make the next push request");
-                                reset(State.ERROR_DOWNLOAD);
-                            }
-                        } else {
-                            throw new RuntimeException("Unexpected response from server");
-                        }
-                    } catch ( RuntimeException e ) {
-                        log.info("WAIT_FOR_CMD " + e.getMessage());
-                        resetLastConnectionData();
-                        reset(State.ERROR_HTTP);
-                    } catch ( IOException e ) {
-                        log.info("WAIT_FOR_CMD " + e.getMessage());
-                        resetLastConnectionData();
-                        reset(State.ERROR_HTTP);
+    /**
+     * The server answered a push request with {@link #CMD_ABORT}, it does not know the token. The token is registered again with the next request, e.g. a
+     * server which was switched to and back by failed probes or which was restarted knows it then. It is given up if the server refuses the registration
+     * or aborts again right after it.
+     */
+    private void serverAborted(String sentCmd) {
+        if ( this.servcomm.getEndpoints().getGeneration() != this.registeredGeneration ) {
+            // the request went to a new server after a failover, the token is registered there with the next request
+            return;
+        }
+        this.abortsInARow++;
+        if ( !sentCmd.equals(CMD_REGISTER) && this.abortsInARow == 1 ) {
+            log.info("server does not know the token " + this.token + " - registering it again");
+            this.registerAgain = true;
+            return;
+        }
+        this.abortsInARow = 0;
+        this.registerAgain = false;
+        log.info(sentCmd.equals(CMD_REGISTER) ? "registration timeout" : "server ended the connection");
+        resetLastConnectionData();
+        notifyConnectionStateChanged(State.TOKEN_TIMEOUT);
+        transition(State.DISCOVER);
+    }
+
+    private void waitExecution() {
+        NAOState robotState = this.naocomm.getNAOstate();
+        if ( robotState == NAOState.WAITING_FOR_PROGRAM ) {
+            // the next push request tells the server that the program ended
+            endRunningReport();
+            log.info("Program execution finished - enter WAIT_FOR_CMD state again");
+            transition(State.WAIT_FOR_CMD);
+        } else if ( robotState == NAOState.DISCONNECTED ) {
+            endRunningReport();
+            log.info("Robot does not wait for a program because " + robotState);
+            resetLastConnectionData();
+            reset(State.ERROR_BRICK);
+        } else {
+            reportRunning();
+            if ( this.state == State.WAIT_EXECUTION ) {
+                handleCommand(takeCommand(250));
+            }
+        }
+    }
+
+    /**
+     * Keep a push request with {@link #CMD_ISRUNNING} pending at the server as long as the program runs, so the server knows that the robot is busy and
+     * the connection does not time out. The answer of a finished request is processed and the next request is sent right away.
+     */
+    private void reportRunning() {
+        ServerRequest<String> report = this.runningReport;
+        if ( report != null && !report.isDone() ) {
+            return;
+        }
+        this.runningReport = null;
+        if ( report != null ) {
+            try {
+                String serverCommand = report.getResult();
+                if ( serverCommand.equals(CMD_ABORT) ) {
+                    serverAborted(this.runningReportCmd);
+                    if ( this.state != State.WAIT_EXECUTION ) {
+                        return;
                     }
-                    break;
-                case WAIT_EXECUTION:
-                    this.state = State.WAIT_EXECUTION;
-                    notifyConnectionStateChanged(this.state);
-
-                    NAOState robotState = this.naocomm.getNAOstate();
-                    if ( robotState == NAOState.WAITING_FOR_PROGRAM ) {
-                        log.info("Program execution finished - enter WAIT_FOR_CMD state again");
-                        this.state = State.WAIT_FOR_CMD;
-                        notifyConnectionStateChanged(this.state);
-                        break;
-                    } else {
-                        log.info("Robot does not wait for a program because " + robotState);
+                } else {
+                    if ( !this.runningReportCmd.equals(CMD_REGISTER) ) {
+                        this.abortsInARow = 0;
                     }
-                    sleepUntilNextStep(1000);
-                    break;
+                    if ( !serverCommand.equals(CMD_REPEAT) && !serverCommand.equals(CMD_ISRUNNING) ) {
+                        log.info("Ignoring " + serverCommand + " while a program is running");
+                    }
+                }
+            } catch ( IOException | RuntimeException e ) {
+                log.info("WAIT_EXECUTION " + e.getMessage());
+                resetLastConnectionData();
+                reset(State.ERROR_HTTP);
+                return;
+            }
+        }
+        this.runningReportCmd = pushCommand(CMD_ISRUNNING);
+        HttpEntity pushBody = this.pushRequestBody.get(this.naocomm, this.token, this.runningReportCmd);
+        if ( pushBody == null ) {
+            reset(State.ERROR_BRICK);
+            return;
+        }
+        this.runningReport = this.servcomm.pushCommandAsync(pushBody);
+    }
 
-                default:
-                    break;
+    /**
+     * Cancel the push request reporting the running program, e.g. because the program ended.
+     */
+    private void endRunningReport() {
+        if ( this.runningReport != null ) {
+            this.runningReport.cancel(true);
+            this.runningReport = null;
+        }
+    }
+
+    /**
+     * Wait for the answer of the server. The connector thread keeps processing the commands of the gui meanwhile, a disconnect or close cancels the
+     * request and resets the connector. Other commands are kept in the queue for the state following the request. The completion of the request is
+     * signalled by exactly one {@link Command#SERVER_RESPONSE}, which is consumed here in any case.
+     *
+     * @return the answer of the server or null if the request was cancelled
+     * @throws IOException if the server could not be reached
+     */
+    private <T> T await(ServerRequest<T> request) throws IOException {
+        request.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable failure) {
+                NAOConnector.this.commands.offer(Command.SERVER_RESPONSE);
+            }
+        });
+        List<Command> deferred = new ArrayList<>();
+        Command cancelledBy = null;
+        try {
+            for ( Command command = takeCommand(0); command != Command.SERVER_RESPONSE; command = takeCommand(0) ) {
+                if ( cancelledBy == null && (command == Command.DISCONNECT || command == Command.CLOSE) ) {
+                    // the response follows right away, an earlier connect is void
+                    cancelledBy = command;
+                    deferred.removeAll(Collections.singleton(Command.CONNECT));
+                    request.cancel(true);
+                } else {
+                    deferred.add(command);
+                }
+            }
+        } finally {
+            this.commands.addAll(deferred);
+        }
+        if ( cancelledBy != null ) {
+            handleCommand(cancelledBy);
+            return null;
+        }
+        if ( request.isCancelled() ) {
+            // cancelled by the gui thread, the disconnect command follows
+            reset(null);
+            return null;
+        }
+        return request.getResult();
+    }
+
+    /**
+     * Wait for the next command from the gui.
+     *
+     * @param timeout in milliseconds, 0 to wait until a command arrives
+     * @return the command or null if the timeout elapsed
+     */
+    private Command takeCommand(long timeout) {
+        try {
+            return timeout > 0 ? this.commands.poll(timeout, TimeUnit.MILLISECONDS) : this.commands.take();
+        } catch ( InterruptedException e ) {
+            return Command.CLOSE;
+        }
+    }
+
+    /**
+     * All state changes caused by the gui happen here, in the connector thread.
+     */
+    private void handleCommand(Command command) {
+        if ( command == null ) {
+            return;
+        }
+        switch ( command ) {
+            case CONNECT:
+                if ( this.state == State.WAIT_FOR_CONNECT_BUTTON_PRESS ) {
+                    transition(State.CONNECT_BUTTON_IS_PRESSED);
+                } else if ( this.state == State.DISCOVER ) {
+                    // remember the command until the robot is discovered
+                    this.pendingConnect = true;
+                }
+                break;
+            case DISCONNECT:
+                this.pendingConnect = false;
+                if ( this.state != State.DISCOVER && this.state != State.WAIT_FOR_CONNECT_BUTTON_PRESS ) {
+                    reset(null);
+                }
+                break;
+            case CLOSE:
+                this.running = false;
+                break;
+            case SETTINGS:
+                applySettings();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void transition(State next) {
+        log.fine("State " + this.state + " -> " + next);
+        this.state = next;
+        notifyConnectionStateChanged(next);
+    }
+
+    /**
+     * Start {@link NAOCommunicator#prepareUpload()} in the background.
+     */
+    private Future<Void> prepareUpload() {
+        return startOnSshWorker(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                long start = System.currentTimeMillis();
+                NAOConnector.this.naocomm.prepareUpload();
+                log.info("Robot prepared in " + (System.currentTimeMillis() - start) + " ms");
+                return null;
             }
+        }, "prepare-upload");
+    }
+
+    /**
+     * Start an ssh operation in the background, on the shared worker pool if there is one.
+     *
+     * @param threadName the name of the thread running the operation if there is no worker pool
+     */
+    private <T> Future<T> startOnSshWorker(Callable<T> task, String threadName) {
+        if ( this.sshWorkers != null ) {
+            return this.sshWorkers.submit(task);
+        }
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread t = new Thread(future, threadName);
+        t.setDaemon(true);
+        t.start();
+        return future;
+    }
+
+    /**
+     * Wait until the robot is prepared for the upload. If the preparation failed, the upload does it again on its own.
+     */
+    private static void awaitPreparation(Future<Void> preparation) throws InterruptedException {
+        if ( preparation == null ) {
+            return;
+        }
+        try {
+            preparation.get();
+        } catch ( ExecutionException e ) {
+            log.info("Preparing the robot failed: " + e.getCause().getMessage());
         }
     }
 
-    private boolean uploadProgram(byte[] binaryfile, String filename) {
+    private boolean uploadProgram(final byte[] binaryfile, final String filename, final Future<Void> preparation) {
         try {
-            this.naocomm.uploadFile(binaryfile, filename);
+            runOnSshWorker(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    awaitPreparation(preparation);
+                    NAOConnector.this.naocomm.uploadFile(binaryfile, filename);
+                    return null;
+                }
+            });
             return true;
         } catch ( Exception e ) {
             log.info("Download failed: " + e.getMessage());
@@ -219,11 +778,42 @@ public class NAOConnector extends Observable implements Runnable, Connector {
         }
     }
 
-    private void sleepUntilNextStep(int time) {
+    /**
+     * Forward the program to the robot while it is downloaded. Download and upload overlap and the program is never held in memory as a whole.
+     *
+     * @param preparation the preparation of the robot running in parallel to the download, may be null
+     * @return the pending download, completed with the file name of the program when it was uploaded to the robot
+     */
+    private ServerRequest<String> streamProgram(JSONObject deviceInfo, final Future<Void> preparation) {
+        return this.servcomm.downloadProgramAsync(deviceInfo, new ServerCommunicator.ProgramReceiver() {
+            @Override
+            public void receive(final String filename, final InputStream content, final long length) throws Exception {
+                runOnSshWorker(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        awaitPreparation(preparation);
+                        NAOConnector.this.naocomm.uploadFile(content, length, filename);
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Run an ssh operation on the shared worker pool if there is one. This bounds the number of robots talked to at the same time.
+     */
+    private <T> T runOnSshWorker(Callable<T> task) throws Exception {
+        if ( this.sshWorkers == null ) {
+            return task.call();
+        }
         try {
-            Thread.sleep(time);
-        } catch ( InterruptedException e ) {
-            // ok
+            return this.sshWorkers.submit(task).get();
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof Exception ) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -237,23 +827,31 @@ public class NAOConnector extends Observable implements Runnable, Connector {
             notifyConnectionStateChanged(additionalerrormessage);
         }
         this.userDisconnect = false;
-        this.state = State.DISCOVER;
-        notifyConnectionStateChanged(this.state);
+        endRunningReport();
+        if ( this.naocomm != null ) {
+            this.naocomm.close();
+        }
+        transition(State.DISCOVER);
     }
 
     @Override
     public void userPressConnectButton() {
-        this.state = State.CONNECT_BUTTON_IS_PRESSED;
+        this.commands.offer(Command.CONNECT);
     }
 
     @Override
     public void userPressDisconnectButton() {
         this.userDisconnect = true;
         resetLastConnectionData();
-        this.servcomm.abort(); // will throw exception, reset will be called in catch statement
+        this.commands.offer(Command.DISCONNECT);
+        this.servcomm.abort(); // cancels the pending requests, the connector thread resets itself
     }
 
     private void resetLastConnectionData() {
+        if ( !this.closing ) {
+            // closing the connector keeps the registration for the next start
+            SessionRecord.delete(this.robotIp);
+        }
         this.token = "";
         this.macAddr = "";
         this.brickName = "";
@@ -261,8 +859,16 @@ public class NAOConnector extends Observable implements Runnable, Connector {
 
     @Override
     public void close() {
+        this.closing = true;
         userPressDisconnectButton();
-        this.servcomm.shutdown();
+        this.commands.offer(Command.CLOSE);
+        if ( this.naocomm != null ) {
+            this.naocomm.close();
+        }
+        if ( !this.sharedResources ) {
+            this.servcomm.shutdown();
+            SshSessionPool.getInstance().shutdown();
+        }
     }
 
     @Override
@@ -271,6 +877,18 @@ public class NAOConnector extends Observable implements Runnable, Connector {
         notifyObservers(state);
     }
 
+    /**
+     * @return the current state of the connector, e.g. for a headless control interface
+     */
+    public State getState() {
+        return this.state;
+    }
+
+    @Override
+    public String getRobotIp() {
+        return this.robotIp;
+    }
+
     @Override
     public String getToken() {
         return this.token;
@@ -287,43 +905,107 @@ public class NAOConnector extends Observable implements Runnable, Connector {
     }
 
     @Override
-    public void updateCustomServerAddress(String customServerAddress) {
-        this.servcomm.updateCustomServerAddress(customServerAddress);
-        log.info("Now using custom address " + customServerAddress);
+    public void updateCustomServerAddress(final String customServerAddress) {
+        changeSettings(new Runnable() {
+            @Override
+            public void run() {
+                NAOConnector.this.servcomm.updateCustomServerAddress(customServerAddress);
+                log.info("Now using custom address " + customServerAddress);
+            }
+        });
     }
 
     @Override
     public void resetToDefaultServerAddress() {
-        this.servcomm.updateCustomServerAddress(this.serverAddress);
-        log.info("Now using default address " + this.serverAddress);
+        changeSettings(new Runnable() {
+            @Override
+            public void run() {
+                NAOConnector.this.servcomm.updateCustomServerAddress(NAOConnector.this.serverAddress);
+                log.info("Now using default address " + NAOConnector.this.serverAddress);
+            }
+        });
     }
 
     @Override
-    public void updateRobotInformation(String ip, String username, String password) {
-        try {
-            this.naocomm.updateRobotInformation(ip, username, password);
-        } catch ( JSchException | IOException | InterruptedException e ) {
-            e.printStackTrace();
-        }
-        log.info("Now using robot information IP: " + ip + "  Username: " + username + "  Password: " + password);
+    public void updateRobotInformation(final String ip, final String username, final String password) {
+        changeSettings(new Runnable() {
+            @Override
+            public void run() {
+                applyRobotInformation(ip, username, password);
+            }
+        });
     }
 
     @Override
     public void resetToDefaultRobotInformation() {
+        changeSettings(new Runnable() {
+            @Override
+            public void run() {
+                applyRobotInformation("0.0.0.0", "nao", "nao");
+            }
+        });
+    }
+
+    /**
+     * Hand a change of the settings to the connector thread.
+     */
+    private void changeSettings(Runnable change) {
+        this.settings.offer(change);
+        this.commands.offer(Command.SETTINGS);
+    }
+
+    private void applySettings() {
+        Runnable change;
+        while ( (change = this.settings.poll()) != null ) {
+            change.run();
+        }
+    }
+
+    private void applyRobotInformation(String ip, String username, String password) {
+        this.robotIp = ip;
+        this.robotUserName = username;
+        this.robotPassword = password;
         try {
-            this.naocomm.updateRobotInformation("0.0.0.0", "nao", "nao");
+            if ( this.naocomm != null ) {
+                this.naocomm.updateRobotInformation(ip, username, password);
+            }
         } catch ( JSchException | IOException | InterruptedException e ) {
             e.printStackTrace();
         }
-        log.info("Now using default robot information IP: 0.0.0.0   Username: nao   Password: nao");
+        log.info("Now using robot information IP: " + ip + "  Username: " + username + "  Password: " + password);
     }
 
     private static class DiscoverNAO {
+        private String address;
 
-        public boolean discover() {
+        /**
+         * Look for a robot on the local subnets, unless an address is configured. If none is found, the address can still be entered in the gui.
+         *
+         * @param configuredIp the address set by the user, empty or 0.0.0.0 if there is none
+         */
+        public boolean discover(String configuredIp) {
+            this.address = configuredIp;
+            if ( !configuredIp.isEmpty() && !configuredIp.equals("0.0.0.0") ) {
+                return true;
+            }
+            try {
+                List<NAODiscovery.Robot> robots = new NAODiscovery().discover();
+                if ( !robots.isEmpty() ) {
+                    this.address = robots.get(0).getIp();
+                }
+            } catch ( IOException e ) {
+                log.info("Discovery failed: " + e.getMessage());
+            }
             return true;
         }
 
+        /**
+         * @return the configured address or the address of the fastest robot found
+         */
+        public String getAddress() {
+            return this.address;
+        }
+
         public NAOCommunicator createCommunicator(String ip, String username, String password) {
             return new NAOCommunicator(ip, username, password);
         }
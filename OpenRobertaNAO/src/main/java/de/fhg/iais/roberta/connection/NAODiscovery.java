@@ -0,0 +1,269 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Finds NAOs on the local subnets. Every host is asked with a non-blocking connect whether it accepts connections on the ports of NAOqi and ssh, many hosts
+ * at the same time from a single thread. The ports of a host are tried one after the other, so hosts without NAOqi cost one attempt only. The number of
+ * open connection attempts is bounded and a host which does not answer within the timeout is given up.
+ */
+public class NAODiscovery {
+    public static final int NAOQI_PORT = 9559;
+    public static final int SSH_PORT = 22;
+
+    private static Logger log = Logger.getLogger("Connector");
+
+    private final int[] ports;
+    private final int maxConnections;
+    private final long timeout;
+
+    /**
+     * Discovery of NAOqi and ssh with 256 parallel connection attempts and a timeout of 300 ms per host and port.
+     */
+    public NAODiscovery() {
+        this(256, 300, NAOQI_PORT, SSH_PORT);
+    }
+
+    /**
+     * @param maxConnections the number of connection attempts at the same time
+     * @param timeout the time in ms a host has to accept a connection on one port
+     * @param ports the ports a host must accept connections on, in the order they are tried
+     */
+    public NAODiscovery(int maxConnections, long timeout, int... ports) {
+        this.maxConnections = maxConnections;
+        this.timeout = timeout;
+        this.ports = ports.clone();
+    }
+
+    /**
+     * Scan the subnets of all local network interfaces, see {@link #localSubnetHosts()}.
+     *
+     * @return the robots found, the fastest first
+     */
+    public List<Robot> discover() throws IOException {
+        long start = System.currentTimeMillis();
+        List<InetAddress> hosts = localSubnetHosts();
+        List<Robot> robots = scan(hosts);
+        log.info("Scanned " + hosts.size() + " hosts in " + (System.currentTimeMillis() - start) + " ms, found " + robots);
+        return robots;
+    }
+
+    /**
+     * @param hosts the hosts to probe
+     * @return the hosts accepting connections on all ports, ordered by the time they needed to accept them
+     */
+    public List<Robot> scan(List<InetAddress> hosts) throws IOException {
+        List<Robot> robots = new ArrayList<>();
+        Deque<Attempt> pending = new ArrayDeque<>();
+        for ( InetAddress host : hosts ) {
+            pending.add(new Attempt(new Robot(host), 0));
+        }
+        try (Selector selector = Selector.open()) {
+            int open = 0;
+            while ( !pending.isEmpty() || open > 0 ) {
+                while ( open < this.maxConnections && !pending.isEmpty() ) {
+                    if ( start(pending.poll(), selector, pending, robots) ) {
+                        open++;
+                    }
+                }
+                selector.select(Math.max(1, this.timeout / 4));
+                long now = System.nanoTime();
+                Iterator<SelectionKey> keys = selector.keys().iterator();
+                while ( keys.hasNext() ) {
+                    SelectionKey key = keys.next();
+                    if ( !key.isValid() ) {
+                        // closed before, removed by the next select
+                        continue;
+                    }
+                    Attempt attempt = (Attempt) key.attachment();
+                    boolean connected = false;
+                    if ( key.isConnectable() ) {
+                        try {
+                            connected = ((SocketChannel) key.channel()).finishConnect();
+                        } catch ( IOException e ) {
+                            // refused or unreachable
+                            close(key);
+                            open--;
+                            continue;
+                        }
+                    }
+                    if ( connected ) {
+                        close(key);
+                        open--;
+                        next(attempt, now, pending, robots);
+                    } else if ( now - attempt.started > this.timeout * 1000000L ) {
+                        close(key);
+                        open--;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        Collections.sort(robots, new Comparator<Robot>() {
+            @Override
+            public int compare(Robot r1, Robot r2) {
+                return Long.compare(r1.latency, r2.latency);
+            }
+        });
+        return robots;
+    }
+
+    /**
+     * @return true if the attempt waits for the connection to be accepted
+     */
+    private boolean start(Attempt attempt, Selector selector, Deque<Attempt> pending, List<Robot> robots) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            attempt.started = System.nanoTime();
+            if ( channel.connect(new InetSocketAddress(attempt.robot.address, this.ports[attempt.port])) ) {
+                channel.close();
+                next(attempt, System.nanoTime(), pending, robots);
+                return false;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            return true;
+        } catch ( IOException e ) {
+            if ( channel != null ) {
+                try {
+                    channel.close();
+                } catch ( IOException ce ) {
+                    // ok
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The port of the attempt accepted the connection, try the next one of the host first or record the host as robot.
+     */
+    private void next(Attempt attempt, long now, Deque<Attempt> pending, List<Robot> robots) {
+        attempt.robot.latency += now - attempt.started;
+        if ( attempt.port + 1 < this.ports.length ) {
+            pending.addFirst(new Attempt(attempt.robot, attempt.port + 1));
+        } else {
+            robots.add(attempt.robot);
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch ( IOException e ) {
+            // ok
+        }
+    }
+
+    /**
+     * The hosts of the IPv4 subnets of all local interfaces which are up, except loopback and the own addresses. Subnets larger than /24 are limited to
+     * the /24 around the own address.
+     */
+    public static List<InetAddress> localSubnetHosts() throws SocketException {
+        Set<InetAddress> hosts = new LinkedHashSet<>();
+        Set<InetAddress> own = new LinkedHashSet<>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while ( interfaces != null && interfaces.hasMoreElements() ) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if ( !networkInterface.isUp() || networkInterface.isLoopback() ) {
+                continue;
+            }
+            for ( InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses() ) {
+                if ( interfaceAddress.getAddress() instanceof Inet4Address ) {
+                    own.add(interfaceAddress.getAddress());
+                    hosts.addAll(subnetHosts((Inet4Address) interfaceAddress.getAddress(), Math.max(24, interfaceAddress.getNetworkPrefixLength())));
+                }
+            }
+        }
+        hosts.removeAll(own);
+        return new ArrayList<>(hosts);
+    }
+
+    /**
+     * @return the hosts of the subnet of the address, without the network and broadcast address
+     */
+    static List<InetAddress> subnetHosts(Inet4Address address, int prefixLength) {
+        byte[] bytes = address.getAddress();
+        int ip = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+        int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        int network = ip & mask;
+        int size = ~mask;
+        List<InetAddress> hosts = new ArrayList<>();
+        for ( int i = 1; i < size; i++ ) {
+            int host = network + i;
+            try {
+                hosts.add(InetAddress.getByAddress(new byte[] {
+                    (byte) (host >>> 24),
+                    (byte) (host >>> 16),
+                    (byte) (host >>> 8),
+                    (byte) host
+                }));
+            } catch ( UnknownHostException e ) {
+                // not thrown for addresses of valid length
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * A host accepting connections on all ports.
+     */
+    public static class Robot {
+        private final InetAddress address;
+        private long latency = 0;
+
+        Robot(InetAddress address) {
+            this.address = address;
+        }
+
+        public String getIp() {
+            return this.address.getHostAddress();
+        }
+
+        /**
+         * @return the sum of the times the ports needed to accept a connection in ms
+         */
+        public double getLatency() {
+            return this.latency / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return getIp() + String.format(" (%.1f ms)", getLatency());
+        }
+    }
+
+    private static class Attempt {
+        private final Robot robot;
+        private final int port;
+        private long started;
+
+        Attempt(Robot robot, int port) {
+            this.robot = robot;
+            this.port = port;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.fhg.iais.roberta.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import de.fhg.iais.roberta.util.SshSessionPool;
+
+/**
+ * Drives many robots from one process, e.g. all NAOs of a classroom. Every robot has its own {@link NAOConnector} with its own token and state, but all
+ * connectors share one pool of http connections to the server, one pool of ssh sessions and a bounded number of threads for the ssh operations. The
+ * connector threads mostly wait for the server and use a small stack.
+ */
+public class NAOFleet {
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static final int DEFAULT_SSH_WORKERS = 4;
+    private static final long CONNECTOR_STACK_SIZE = 256 * 1024;
+
+    private final ResourceBundle serverProps;
+    private final ServerConnectionPool connections;
+    private final ExecutorService sshWorkers;
+    private final List<NAOConnector> connectors = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private boolean started = false;
+
+    public NAOFleet(ResourceBundle serverProps) {
+        this(serverProps, DEFAULT_SSH_WORKERS);
+    }
+
+    /**
+     * @param serverProps the server settings used by all robots
+     * @param sshWorkers the maximum number of robots talked to via ssh at the same time
+     */
+    public NAOFleet(ResourceBundle serverProps, int sshWorkers) {
+        this.serverProps = serverProps;
+        this.connections = new ServerConnectionPool(serverProps);
+        this.sshWorkers = Executors.newFixedThreadPool(sshWorkers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ssh-worker-" + this.count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Add a robot to the fleet. Its connector is started by {@link #start()}, or immediately if the fleet is already running.
+     *
+     * @return the connector of the robot, e.g. to observe its state
+     */
+    public synchronized NAOConnector addRobot(String ip, String username, String password) {
+        NAOConnector connector = new NAOConnector(this.serverProps, this.connections, this.sshWorkers);
+        connector.updateRobotInformation(ip, username, password);
+        this.connectors.add(connector);
+        // every connector holds one long poll to the server
+        this.connections.setMaxPushConnections(Math.max(2, this.connectors.size()));
+        if ( this.started ) {
+            startConnector(connector);
+        }
+        log.info("Robot " + ip + " added to the fleet (" + this.connectors.size() + " robots)");
+        return connector;
+    }
+
+    /**
+     * Start the connector threads of all robots added so far.
+     */
+    public synchronized void start() {
+        if ( this.started ) {
+            return;
+        }
+        this.started = true;
+        for ( NAOConnector connector : this.connectors ) {
+            startConnector(connector);
+        }
+    }
+
+    /**
+     * @return the http connections shared by the robots, e.g. to look at the pool statistics
+     */
+    public ServerConnectionPool getConnections() {
+        return this.connections;
+    }
+
+    public synchronized List<NAOConnector> getConnectors() {
+        return Collections.unmodifiableList(new ArrayList<>(this.connectors));
+    }
+
+    /**
+     * Close all connectors and release the shared resources.
+     */
+    public synchronized void close() {
+        for ( NAOConnector connector : this.connectors ) {
+            connector.close();
+        }
+        this.sshWorkers.shutdownNow();
+        this.connections.close();
+        SshSessionPool.getInstance().shutdown();
+    }
+
+    private void startConnector(NAOConnector connector) {
+        Thread t = new Thread(null, connector, "connector-" + (this.threads.size() + 1), CONNECTOR_STACK_SIZE);
+        t.setDaemon(true);
+        this.threads.add(t);
+        t.start();
+    }
+}
@@ -0,0 +1,105 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+
+import de.fhg.iais.roberta.util.SshConnection;
+
+/**
+ * Detects whether a user program is running on the robot. A single shell is kept open on the robot and fed with one probe per request. The probe only uses
+ * shell builtins to check the process id written by the program launch, so the robot neither forks nor opens a new channel for it and the state can be
+ * polled at sub-second intervals.
+ */
+public class NAOStateMonitor {
+    /**
+     * the launch command writes the process id of the user program to this file
+     */
+    public static final String PID_FILE = "/tmp/roberta_program.pid";
+
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static final String PROBE =
+        "if read p < " + PID_FILE + " 2>/dev/null && kill -0 $p 2>/dev/null; then echo R; else echo W; fi\n";
+    private static final long PROBE_TIMEOUT = 2000;
+
+    private final SshConnection ssh;
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private ChannelExec channel;
+    private OutputStream stdin;
+
+    public NAOStateMonitor(SshConnection ssh) {
+        this.ssh = ssh;
+    }
+
+    /**
+     * Probe the robot once. The shell is (re)opened if necessary.
+     *
+     * @return the state of the robot, {@link NAOState#DISCONNECTED} if it does not answer
+     */
+    public synchronized NAOState probe() {
+        try {
+            if ( this.channel == null || this.channel.isClosed() ) {
+                open();
+            }
+            this.replies.clear();
+            this.stdin.write(PROBE.getBytes(StandardCharsets.US_ASCII));
+            this.stdin.flush();
+            String reply = this.replies.poll(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if ( "R".equals(reply) ) {
+                return NAOState.PROGRAM_RUNNING;
+            } else if ( "W".equals(reply) ) {
+                return NAOState.WAITING_FOR_PROGRAM;
+            }
+            log.info("No answer from robot state probe");
+        } catch ( JSchException | IOException e ) {
+            log.info("Robot state probe failed: " + e.getMessage());
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+        return NAOState.DISCONNECTED;
+    }
+
+    /**
+     * Close the shell on the robot.
+     */
+    public synchronized void close() {
+        if ( this.channel != null ) {
+            this.channel.disconnect();
+            this.channel = null;
+            this.stdin = null;
+        }
+        this.ssh.disconnect();
+    }
+
+    private void open() throws JSchException, IOException {
+        close();
+        this.channel = this.ssh.openChannel("sh", new LineOutputStream());
+        this.stdin = this.channel.getOutputStream();
+    }
+
+    /**
+     * Splits the output of the shell into lines, written by the session thread.
+     */
+    private class LineOutputStream extends OutputStream {
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(int b) {
+            if ( b == '\n' ) {
+                NAOStateMonitor.this.replies.offer(this.line.toString().trim());
+                this.line.setLength(0);
+            } else {
+                this.line.append((char) b);
+            }
+        }
+    }
+}
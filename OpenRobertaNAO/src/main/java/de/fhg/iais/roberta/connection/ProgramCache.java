@@ -0,0 +1,114 @@
+package de.fhg.iais.roberta.connection;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Cache of user programs keyed by the SHA-256 of their content. The robot keeps the last programs in {@link #REMOTE_DIRECTORY}, so an identical program is
+ * launched from there instead of being uploaded again. The connector remembers which programs are on the robot, the cache is bounded and evicts the least
+ * recently used programs. Every program comes with its content from the server, so no copy is kept on the connector's side.
+ */
+public class ProgramCache {
+    public static final String REMOTE_DIRECTORY = "roberta_programs";
+
+    /**
+     * a streamed program is written to this file until its hash is known
+     */
+    public static final String REMOTE_INCOMING = REMOTE_DIRECTORY + "/.incoming.py";
+
+    private static Logger log = Logger.getLogger("Connector");
+
+    private final int remoteCapacity;
+
+    /**
+     * hashes of the programs on the robot in access order, the eldest entry is evicted first
+     */
+    private final LinkedHashMap<String, Boolean> onRobot = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param remoteCapacity the number of programs kept on the robot
+     */
+    public ProgramCache(int remoteCapacity) {
+        this.remoteCapacity = remoteCapacity;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 of the program
+     */
+    public static String hash(byte[] program) {
+        try {
+            return HalManifest.toHex(MessageDigest.getInstance("SHA-256").digest(program));
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the file name of the cached program relative to the robot's home directory
+     */
+    public static String remoteFileName(String hash) {
+        return REMOTE_DIRECTORY + "/" + hash + ".py";
+    }
+
+    /**
+     * Look up a program and log the hit or miss. A hit marks the program as recently used.
+     *
+     * @return true if the program is already on the robot
+     */
+    public synchronized boolean isOnRobot(String hash) {
+        if ( this.onRobot.get(hash) != null ) {
+            log.info("Program cache hit " + hash);
+            return true;
+        }
+        log.info("Program cache miss " + hash);
+        return false;
+    }
+
+    /**
+     * Record that a program was uploaded to the robot.
+     *
+     * @return the hashes of the programs evicted to make room, these have to be deleted on the robot
+     */
+    public synchronized List<String> addToRobot(String hash) {
+        this.onRobot.put(hash, Boolean.TRUE);
+        List<String> evicted = new ArrayList<>();
+        Iterator<String> it = this.onRobot.keySet().iterator();
+        while ( this.onRobot.size() - evicted.size() > this.remoteCapacity && it.hasNext() ) {
+            evicted.add(it.next());
+        }
+        for ( String e : evicted ) {
+            this.onRobot.remove(e);
+            log.info("Program cache eviction on robot " + e);
+        }
+        return evicted;
+    }
+
+    /**
+     * Replace the knowledge about the robot with the content of its cache directory, e.g. after connecting to a robot.
+     *
+     * @param remoteFileNames names of the files in the robot's cache directory
+     */
+    public synchronized void syncWithRobot(Collection<String> remoteFileNames) {
+        this.onRobot.clear();
+        for ( String fileName : remoteFileNames ) {
+            fileName = fileName.trim();
+            if ( fileName.endsWith(".py") ) {
+                this.onRobot.put(fileName.substring(0, fileName.length() - 3), Boolean.TRUE);
+            }
+        }
+        log.info("Robot has " + this.onRobot.size() + " cached programs");
+    }
+
+    /**
+     * Forget what is on the robot, e.g. if the robot was changed.
+     */
+    public synchronized void clearRobot() {
+        this.onRobot.clear();
+    }
+}
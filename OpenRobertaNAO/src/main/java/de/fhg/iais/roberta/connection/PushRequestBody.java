@@ -0,0 +1,50 @@
+package de.fhg.iais.roberta.connection;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONObject;
+
+/**
+ * The body of the push requests of one connector. The connector sends the same device info, token and command every few seconds, so the body is
+ * serialised once and the entity is reused until one of them changes. A byte array entity is repeatable and is only read by the http client.
+ */
+public class PushRequestBody {
+    private static final ContentType JSON = ContentType.create("application/json", "UTF-8");
+
+    private int deviceInfoRevision = -1;
+    private String token;
+    private String cmd;
+    private JSONObject content;
+    private HttpEntity entity;
+
+    /**
+     * @return the body for the current device info of the robot, null if the robot does not provide it
+     */
+    public HttpEntity get(NAOCommunicator naocomm, String token, String cmd) {
+        int revision = naocomm.getDeviceInfoRevision();
+        if ( this.entity == null || revision != this.deviceInfoRevision || !token.equals(this.token) || !cmd.equals(this.cmd) ) {
+            JSONObject deviceInfo = naocomm.getDeviceInfo();
+            if ( deviceInfo == null ) {
+                return null;
+            }
+            deviceInfo.put(Connector.KEY_TOKEN, token);
+            deviceInfo.put(Connector.KEY_CMD, cmd);
+            this.deviceInfoRevision = revision;
+            this.token = token;
+            this.cmd = cmd;
+            this.content = deviceInfo;
+            this.entity = new ByteArrayEntity(deviceInfo.toString().getBytes(StandardCharsets.UTF_8), JSON);
+        }
+        return this.entity;
+    }
+
+    /**
+     * @return the content of the last body, e.g. for the download request following a push request
+     */
+    public JSONObject getContent() {
+        return this.content;
+    }
+}
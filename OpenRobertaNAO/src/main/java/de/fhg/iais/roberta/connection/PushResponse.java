@@ -0,0 +1,184 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/**
+ * Reads the command from the answer of a push request, e.g. {"cmd":"repeat"}. Most answers are one of a few known commands, so the answer is read into a
+ * buffer of the calling thread and the command is found by scanning the bytes of the top-level object. A known command is returned as constant, nothing is
+ * allocated for it. Answers which do not look as expected are parsed as json.
+ */
+public class PushResponse {
+    private static final byte[] KEY = ("\"" + Connector.KEY_CMD + "\"").getBytes(StandardCharsets.US_ASCII);
+    private static final String[] KNOWN_COMMANDS = {
+        Connector.CMD_REPEAT,
+        Connector.CMD_ABORT,
+        Connector.CMD_DOWNLOAD,
+        Connector.CMD_DOWNLOAD_RUN,
+        Connector.CMD_UPDATE,
+        Connector.CMD_CONFIGURATION,
+        Connector.CMD_ISRUNNING
+    };
+    private static final byte[][] KNOWN_COMMAND_BYTES = new byte[KNOWN_COMMANDS.length][];
+    static {
+        for ( int i = 0; i < KNOWN_COMMANDS.length; i++ ) {
+            KNOWN_COMMAND_BYTES[i] = KNOWN_COMMANDS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[512];
+        }
+    };
+
+    private PushResponse() {
+    }
+
+    /**
+     * @param in the body of the answer, read until its end
+     * @return the value of the "cmd" field
+     */
+    public static String readCommand(InputStream in) throws IOException {
+        byte[] buffer = BUFFER.get();
+        int length = 0;
+        int n;
+        while ( (n = in.read(buffer, length, buffer.length - length)) >= 0 ) {
+            length += n;
+            if ( length == buffer.length ) {
+                byte[] larger = new byte[2 * buffer.length];
+                System.arraycopy(buffer, 0, larger, 0, length);
+                buffer = larger;
+                BUFFER.set(buffer);
+            }
+        }
+        return parseCommand(buffer, length);
+    }
+
+    /**
+     * @return the value of the "cmd" field of the json object in the first bytes of the buffer
+     */
+    public static String parseCommand(byte[] buffer, int length) {
+        int i = skipWhitespace(buffer, length, 0);
+        if ( i < length && buffer[i] == '{' ) {
+            i = skipWhitespace(buffer, length, i + 1);
+            // only the keys of the top-level object are compared, the values of other keys are skipped
+            while ( i < length && buffer[i] == '"' ) {
+                int keyEnd = skipString(buffer, length, i);
+                if ( keyEnd < 0 ) {
+                    break;
+                }
+                boolean isCommand = keyEnd - i == KEY.length && regionMatches(buffer, i, KEY);
+                i = skipWhitespace(buffer, length, keyEnd);
+                if ( i >= length || buffer[i] != ':' ) {
+                    break;
+                }
+                i = skipWhitespace(buffer, length, i + 1);
+                if ( isCommand ) {
+                    if ( i < length && buffer[i] == '"' ) {
+                        int start = i + 1;
+                        int end = start;
+                        while ( end < length && buffer[end] != '"' && buffer[end] != '\\' ) {
+                            end++;
+                        }
+                        if ( end < length && buffer[end] == '"' ) {
+                            return toCommand(buffer, start, end);
+                        }
+                    }
+                    break;
+                }
+                i = skipValue(buffer, length, i);
+                if ( i < 0 ) {
+                    break;
+                }
+                i = skipWhitespace(buffer, length, i);
+                if ( i >= length || buffer[i] != ',' ) {
+                    break;
+                }
+                i = skipWhitespace(buffer, length, i + 1);
+            }
+        }
+        // escapes in the command, an unexpected structure or no "cmd" at all
+        return new JSONObject(new String(buffer, 0, length, StandardCharsets.UTF_8)).getString(Connector.KEY_CMD);
+    }
+
+    private static String toCommand(byte[] buffer, int start, int end) {
+        for ( int k = 0; k < KNOWN_COMMAND_BYTES.length; k++ ) {
+            byte[] command = KNOWN_COMMAND_BYTES[k];
+            if ( command.length == end - start && regionMatches(buffer, start, command) ) {
+                return KNOWN_COMMANDS[k];
+            }
+        }
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i the index of the opening quote
+     * @return the index after the closing quote or -1 if the string does not end in the buffer
+     */
+    private static int skipString(byte[] buffer, int length, int i) {
+        for ( i++; i < length; i++ ) {
+            if ( buffer[i] == '\\' ) {
+                i++;
+            } else if ( buffer[i] == '"' ) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param i the index of the first byte of a json value
+     * @return the index after the value or -1 if it does not end in the buffer
+     */
+    private static int skipValue(byte[] buffer, int length, int i) {
+        int depth = 0;
+        while ( i < length ) {
+            byte b = buffer[i];
+            if ( b == '"' ) {
+                i = skipString(buffer, length, i);
+                if ( i < 0 ) {
+                    return -1;
+                }
+            } else if ( b == '{' || b == '[' ) {
+                depth++;
+                i++;
+            } else if ( b == '}' || b == ']' ) {
+                if ( depth == 0 ) {
+                    // the end of the enclosing object after a number or literal
+                    return i;
+                }
+                depth--;
+                i++;
+            } else if ( b == ',' && depth == 0 ) {
+                return i;
+            } else {
+                i++;
+            }
+            if ( depth == 0 && (b == '"' || b == '}' || b == ']') ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, byte[] pattern) {
+        for ( int j = 0; j < pattern.length; j++ ) {
+            if ( buffer[offset + j] != pattern[j] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] buffer, int length, int i) {
+        while ( i < length && (buffer[i] == ' ' || buffer[i] == '\t' || buffer[i] == '\r' || buffer[i] == '\n') ) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,58 @@
+package de.fhg.iais.roberta.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When to repeat a request to the server after a transient failure, e.g. a short outage of the school network. The delay grows exponentially up to a
+ * cap and is randomised over the whole interval ("full jitter"), so that many robots failing at the same moment do not hit the server at the same moment
+ * again. Retries and give-ups are counted for all requests using the policy.
+ */
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong giveUps = new AtomicLong();
+
+    /**
+     * @param maxAttempts how often a request is sent at most, 1 to never retry
+     * @param baseDelay the upper bound of the delay before the first retry in ms, doubled for every further retry
+     * @param maxDelay the cap of the upper bound in ms
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param attempt the number of attempts made so far, starting with 1
+     * @return true if the request should be sent again, the retry is counted. If not, the give-up is counted.
+     */
+    public boolean shouldRetry(int attempt) {
+        if ( attempt < this.maxAttempts ) {
+            this.retries.incrementAndGet();
+            return true;
+        }
+        this.giveUps.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param attempt the number of attempts made so far, starting with 1
+     * @return the time to wait before the next attempt in ms
+     */
+    public long delay(int attempt) {
+        long bound = this.baseDelay << Math.min(attempt - 1, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(bound, this.maxDelay) + 1);
+    }
+
+    public long getRetries() {
+        return this.retries.get();
+    }
+
+    public long getGiveUps() {
+        return this.giveUps.get();
+    }
+}
@@ -2,35 +2,56 @@ package de.fhg.iais.roberta.connection;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.OutputStream;
+import java.net.URI;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.SystemUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-
 /**
  * The server communicator runs the server protocol on behalf of the actual robot hardware.
  * This class provides access to push requests, downloads the user program and download system libraries for
@@ -40,51 +61,82 @@ import net.lingala.zip4j.exception.ZipException;
  */
 public class ServerCommunicator {
 
-    private String serverpushAddress;
-    private String serverdownloadAddress;
-    private String serverUpdateAddress;
-    private String serverUpdateChecksumAddress;
+    private static final String PUSH_PATH = "/rest/pushcmd";
+    private static final String DOWNLOAD_PATH = "/rest/download";
+    private static final String UPDATE_PATH = "/update/nao/%s/hal";
+    private static final String UPDATE_CHECKSUM_PATH = "/update/nao/%s/hal/checksum";
+
+    /**
+     * an entity tag of the HAL is only used to verify the download if it looks like a Base64 encoded SHA-1, other servers and proxies send opaque tags
+     */
+    private static final Pattern CHECKSUM_TAG = Pattern.compile("[A-Za-z0-9+/]{27}=");
+
+    private volatile ServerEndpoints endpoints;
 
     private static Logger log = Logger.getLogger("Connector");
 
-    private final CloseableHttpClient httpclient;
-    private HttpPost post = null;
+    private static final ResponseHandler<String> COMMAND_HANDLER = new ResponseHandler<String>() {
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException {
+            checkServerError(response);
+            HttpEntity responseEntity = response.getEntity();
+            if ( responseEntity == null ) {
+                throw new IOException("Empty response from server");
+            }
+            try (InputStream content = responseEntity.getContent()) {
+                return PushResponse.readCommand(content);
+            }
+        }
+    };
+
+    private final ServerConnectionPool connections;
+    private final Set<ServerRequest<?>> pendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<ServerRequest<?>, Boolean>());
 
-    private String filename = "";
-    private String halZipPath;
-    private String workingDirectory;
+    private volatile String filename = "";
+    private final HalStore halStore = HalStore.getDefault();
 
     /**
      * @param serverAddress either the default address taken from the properties file or the custom address entered in the gui.
      */
     public ServerCommunicator(String serverAddress) {
+        this(serverAddress, new ServerConnectionPool(null));
+    }
+
+    /**
+     * @param serverAddress either the default address taken from the properties file or the custom address entered in the gui.
+     * @param connections the http connections to use, may be shared by several server communicators
+     */
+    public ServerCommunicator(String serverAddress, ServerConnectionPool connections) {
+        this.connections = connections;
         updateCustomServerAddress(serverAddress);
-        this.httpclient = HttpClients.createDefault();
     }
 
     /**
-     * Update the server address if the user wants to use an own installation of open roberta with a different IP address.
+     * Update the server address if the user wants to use an own installation of open roberta with a different IP address. Several addresses separated by
+     * commas are used as fallbacks for each other, see {@link ServerEndpoints}.
      *
-     * @param customServerAddress for example localhost:1999 or 192.168.178.10:1337
+     * @param customServerAddress for example localhost:1999 or 192.168.178.10:1337 or https://school.example.org, lab.open-roberta.org:443
      */
     public void updateCustomServerAddress(String customServerAddress) {
-        String prefix;
-        if ( customServerAddress.contains("443") ) {
-            prefix = "https://";
-        } else {
-            prefix = "http://";
-        }
-        this.serverpushAddress = prefix + customServerAddress + "/rest/pushcmd";
-        this.serverdownloadAddress = prefix + customServerAddress + "/rest/download";
-        this.serverUpdateAddress = prefix + customServerAddress + "/update/nao/%s/hal";
-        this.serverUpdateChecksumAddress = prefix + customServerAddress + "/update/nao/%s/hal/checksum";
-        if ( SystemUtils.IS_OS_WINDOWS ) {
-            this.halZipPath = System.getenv("APPDATA") + "/OpenRoberta/roberta.zip";
-            this.workingDirectory = System.getenv("APPDATA") + "/OpenRoberta/";
-        } else {
-            this.halZipPath = System.getProperty("user.home") + "/OpenRoberta/roberta.zip";
-            this.workingDirectory = System.getProperty("user.home") + "/OpenRoberta/";
+        if ( this.endpoints != null ) {
+            this.endpoints.stopProbes();
         }
+        this.endpoints = new ServerEndpoints(customServerAddress);
+        this.endpoints.startProbes(this.connections.getScheduler(), this.connections.getBulkClient());
+    }
+
+    /**
+     * @return the servers used by this communicator
+     */
+    public ServerEndpoints getEndpoints() {
+        return this.endpoints;
+    }
+
+    /**
+     * Send the following requests to the fastest healthy server, e.g. before a new registration.
+     */
+    public void selectFastestServer() {
+        this.endpoints.selectFastest();
     }
 
     /**
@@ -103,20 +155,45 @@ public class ServerCommunicator {
      * @throws IOException if the server is unreachable for whatever reason.
      */
     public JSONObject pushRequest(JSONObject requestContent) throws IOException, JSONException {
-        this.post = new HttpPost(this.serverpushAddress);
-        this.post.setHeader("User-Agent", "Java/1.7.0_60");
-        StringEntity requestEntity = new StringEntity(requestContent.toString(), ContentType.create("application/json", "UTF-8"));
-        this.post.setEntity(requestEntity);
+        return pushRequestAsync(requestContent).getResult();
+    }
 
-        CloseableHttpResponse response = this.httpclient.execute(this.post);
-        HttpEntity responseEntity = response.getEntity();
-        String responseText = "";
-        if ( responseEntity != null ) {
-            responseText = EntityUtils.toString(responseEntity);
-        }
-        response.close();
+    /**
+     * Sends a push request in the background, see {@link #pushRequest(JSONObject)}.
+     *
+     * @param requestContent data from the robot plus the token and the command send to the server (CMD_REGISTER or CMD_PUSH)
+     * @return the pending request, completed with the response from the server
+     */
+    public ServerRequest<JSONObject> pushRequestAsync(JSONObject requestContent) {
+        HttpPost post = new HttpPost();
+        post.setHeader("User-Agent", "Java/1.7.0_60");
+        StringEntity requestEntity = new StringEntity(requestContent.toString(), ContentType.create("application/json", "UTF-8"));
+        post.setEntity(requestEntity);
+        return submit(this.connections.getPushClient(), PUSH_PATH, post, new ResponseHandler<JSONObject>() {
+            @Override
+            public JSONObject handleResponse(HttpResponse response) throws IOException {
+                checkServerError(response);
+                HttpEntity responseEntity = response.getEntity();
+                String responseText = "";
+                if ( responseEntity != null ) {
+                    responseText = EntityUtils.toString(responseEntity);
+                }
+                return new JSONObject(responseText);
+            }
+        });
+    }
 
-        return new JSONObject(responseText);
+    /**
+     * Sends a push request with a prepared body in the background. Only the command of the answer is read, without parsing the whole answer.
+     *
+     * @param body the serialised push request, e.g. from {@link PushRequestBody}
+     * @return the pending request, completed with the command from the server
+     */
+    public ServerRequest<String> pushCommandAsync(HttpEntity body) {
+        HttpPost post = new HttpPost();
+        post.setHeader("User-Agent", "Java/1.7.0_60");
+        post.setEntity(body);
+        return submit(this.connections.getPushClient(), PUSH_PATH, post, COMMAND_HANDLER);
     }
 
     /**
@@ -127,67 +204,459 @@ public class ServerCommunicator {
      * @throws IOException if the server is unreachable or something is wrong with the binary content.
      */
     public byte[] downloadProgram(JSONObject requestContent) throws IOException {
+        return downloadProgramAsync(requestContent).getResult();
+    }
 
-        HttpPost post = new HttpPost(this.serverdownloadAddress);
+    /**
+     * Downloads a user program in the background, see {@link #downloadProgram(JSONObject)}.
+     *
+     * @param requestContent all the content of a standard push request.
+     * @return the pending request, completed with the program. Its file name is available from {@link #getFilename()} afterwards.
+     */
+    public ServerRequest<byte[]> downloadProgramAsync(JSONObject requestContent) {
+        HttpPost post = new HttpPost();
         post.setHeader("User-Agent", "Java/1.7.0_60");
         StringEntity requestEntity = new StringEntity(requestContent.toString(), ContentType.create("application/json", "UTF-8"));
         post.setEntity(requestEntity);
-        CloseableHttpResponse response = this.httpclient.execute(post);
-        HttpEntity responseEntity = response.getEntity();
-        byte[] binaryfile = null;
-        if ( responseEntity != null ) {
-            this.filename = response.getFirstHeader("Filename").getValue();
-            binaryfile = EntityUtils.toByteArray(responseEntity);
+        this.connections.logIfQueuing();
+        return submit(this.connections.getBulkClient(), DOWNLOAD_PATH, post, new ResponseHandler<byte[]>() {
+            @Override
+            public byte[] handleResponse(HttpResponse response) throws IOException {
+                checkServerError(response);
+                HttpEntity responseEntity = response.getEntity();
+                byte[] binaryfile = null;
+                if ( responseEntity != null ) {
+                    ServerCommunicator.this.filename = getFilename(response);
+                    binaryfile = EntityUtils.toByteArray(responseEntity);
+                }
+                return binaryfile;
+            }
+        });
+    }
+
+    /**
+     * Run a request in the background. It is aborted by {@link #abort()} as long as it is pending. If the server cannot be reached or answers with a server
+     * error, the request is repeated according to the {@link RetryPolicy} of the connections before the failure is reported. Each failure is reported to
+     * the endpoints, so a retry goes to another server if there is a healthy one. A {@link FinalFailure} is reported right away.
+     *
+     * @param path the path of the request relative to the server address, e.g. {@link #PUSH_PATH}. Each attempt resolves it against the current endpoint.
+     */
+    private <T> ServerRequest<T> submit(final CloseableHttpClient client, final String path, final HttpRequestBase request, final ResponseHandler<T> handler) {
+        final ServerRequest<T> pending = new ServerRequest<>(request);
+        this.pendingRequests.add(pending);
+        try {
+            this.connections.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    RetryPolicy retryPolicy = ServerCommunicator.this.connections.getRetryPolicy();
+                    try {
+                        for ( int attempt = 1;; attempt++ ) {
+                            ServerEndpoints.Endpoint endpoint = ServerCommunicator.this.endpoints.current();
+                            request.setURI(URI.create(endpoint.resolve(path)));
+                            try {
+                                pending.complete(client.execute(request, handler));
+                                return;
+                            } catch ( IOException e ) {
+                                if ( pending.isCancelled() || e instanceof FinalFailure ) {
+                                    throw e;
+                                }
+                                ServerCommunicator.this.endpoints.reportFailure(endpoint);
+                                if ( !retryPolicy.shouldRetry(attempt) ) {
+                                    throw e;
+                                }
+                                long delay = retryPolicy.delay(attempt);
+                                log.info("Request to " + request.getURI().getPath() + " failed (" + e.getMessage() + "), retry in " + delay + "ms");
+                                if ( awaitCancellation(pending, delay) ) {
+                                    return;
+                                }
+                                request.reset();
+                                if ( pending.isCancelled() ) {
+                                    return;
+                                }
+                            }
+                        }
+                    } catch ( IOException | RuntimeException e ) {
+                        pending.completeExceptionally(e);
+                    } finally {
+                        ServerCommunicator.this.pendingRequests.remove(pending);
+                    }
+                }
+            });
+        } catch ( RejectedExecutionException e ) {
+            this.pendingRequests.remove(pending);
+            pending.completeExceptionally(new IOException("connection to the server closed", e));
+        }
+        return pending;
+    }
+
+    /**
+     * @return true if the request was cancelled within the delay
+     */
+    private static boolean awaitCancellation(ServerRequest<?> pending, long delay) {
+        try {
+            pending.get(delay, TimeUnit.MILLISECONDS);
+        } catch ( TimeoutException e ) {
+            return false;
+        } catch ( InterruptedException e ) {
+            pending.cancel(true);
+        } catch ( CancellationException | ExecutionException e ) {
+            // done
+        }
+        return true;
+    }
+
+    /**
+     * @return the file name of a downloaded program
+     * @throws IOException if the server did not send one, e.g. with an error page
+     */
+    private static String getFilename(HttpResponse response) throws IOException {
+        Header filename = response.getFirstHeader("Filename");
+        if ( filename == null ) {
+            throw new FinalFailure("No program in the response, the file name is missing", null);
+        }
+        return filename.getValue();
+    }
+
+    /**
+     * @throws IOException if the server answered with a server error, e.g. while it is restarted behind a proxy
+     */
+    private static void checkServerError(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if ( status >= HttpStatus.SC_INTERNAL_SERVER_ERROR ) {
+            throw new IOException("Server answered with status " + status);
+        }
+    }
+
+    /**
+     * Downloads a user program from the server and hands the content to the receiver while it is still arriving, so that it can be forwarded to the robot
+     * without being buffered.
+     *
+     * @param requestContent all the content of a standard push request.
+     * @param receiver consumes the program, the stream is only valid during the call
+     * @throws IOException if the server is unreachable, something is wrong with the content or the receiver failed.
+     */
+    public void downloadProgram(JSONObject requestContent, ProgramReceiver receiver) throws IOException {
+        downloadProgramAsync(requestContent, receiver).getResult();
+    }
+
+    /**
+     * Downloads a user program in the background and hands it to the receiver, see {@link #downloadProgram(JSONObject, ProgramReceiver)}. The download is
+     * repeated according to the {@link RetryPolicy} until the content is handed to the receiver, afterwards a failure ends it. Cancelling the request or
+     * {@link #abort()} aborts the download, also while the receiver reads it.
+     *
+     * @return the pending request, completed with the file name of the program when the receiver is done
+     */
+    public ServerRequest<String> downloadProgramAsync(JSONObject requestContent, final ProgramReceiver receiver) {
+        HttpPost post = new HttpPost();
+        post.setHeader("User-Agent", "Java/1.7.0_60");
+        StringEntity requestEntity = new StringEntity(requestContent.toString(), ContentType.create("application/json", "UTF-8"));
+        post.setEntity(requestEntity);
+        this.connections.logIfQueuing();
+        return submit(this.connections.getBulkClient(), DOWNLOAD_PATH, post, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws IOException {
+                // nothing is forwarded to the robot before the answer is known to be a program
+                checkServerError(response);
+                int status = response.getStatusLine().getStatusCode();
+                if ( status != HttpStatus.SC_OK ) {
+                    throw new FinalFailure("Server answered the download with status " + status, null);
+                }
+                HttpEntity responseEntity = response.getEntity();
+                if ( responseEntity == null ) {
+                    throw new FinalFailure("No program in the response", null);
+                }
+                String filename = getFilename(response);
+                ServerCommunicator.this.filename = filename;
+                try (InputStream content = responseEntity.getContent()) {
+                    receiver.receive(filename, content, responseEntity.getContentLength());
+                } catch ( Exception e ) {
+                    // the robot may have got a part of the program already
+                    throw new FinalFailure(e.getMessage(), e);
+                }
+                return filename;
+            }
+        });
+    }
+
+    /**
+     * A failure which is not solved by repeating the request, see {@link ServerCommunicator#submit}.
+     */
+    private static class FinalFailure extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FinalFailure(String message, Throwable cause) {
+            super(message, cause);
         }
-        response.close();
+    }
 
-        return binaryfile;
+    /**
+     * Consumes a program while it is downloaded.
+     */
+    public interface ProgramReceiver {
+        /**
+         * @param filename the file name sent by the server
+         * @param content the program
+         * @param length the number of bytes of the program or -1 if the server did not tell
+         */
+        void receive(String filename, InputStream content, long length) throws Exception;
     }
 
     public boolean verifyHalChecksum(String firmware) throws NoSuchAlgorithmException, IOException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        Path path = Paths.get(this.halZipPath);
-        try {
-            digest.update(Files.readAllBytes(path));
-        } catch ( IOException e ) {
+        return verifyHalChecksum(firmware, getLocalHalChecksum(firmware));
+    }
+
+    /**
+     * Compare the checksum of the local HAL with the one of the server.
+     *
+     * @param firmware the firmware version of the robot
+     * @param localChecksum the checksum from {@link #getLocalHalChecksum(String)}, which may have been computed in parallel to other work
+     * @return true if the local HAL is up to date
+     */
+    public boolean verifyHalChecksum(String firmware, String localChecksum) throws IOException {
+        if ( localChecksum == null ) {
             return false;
         }
-        byte[] result = digest.digest();
-        log.log(Level.INFO, "Current hals checksum: {0} ", Base64.getEncoder().encodeToString(result));
+        log.log(Level.INFO, "Current hals checksum: {0} ", localChecksum);
 
-        HttpGet get = new HttpGet(String.format(this.serverUpdateChecksumAddress, firmware));
+        HttpGet get = new HttpGet(this.endpoints.current().resolve(String.format(UPDATE_CHECKSUM_PATH, firmware)));
         get.setHeader("User-Agent", "Java/1.7.0_60");
-        CloseableHttpResponse response = this.httpclient.execute(get);
-        HttpEntity responseEntity = response.getEntity();
-
-        BufferedReader rd = new BufferedReader(new InputStreamReader(responseEntity.getContent()));
-        String line;
-        if ( (line = rd.readLine()) != null ) {
-            log.log(Level.INFO, "Received checksum from server: {0} ", line);
-            if ( Base64.getEncoder().encodeToString(result).equals(line) ) {
-                return true;
+        try (CloseableHttpResponse response = this.connections.getBulkClient().execute(get)) {
+            HttpEntity responseEntity = response.getEntity();
+
+            BufferedReader rd = new BufferedReader(new InputStreamReader(responseEntity.getContent()));
+            String line;
+            if ( (line = rd.readLine()) != null ) {
+                log.log(Level.INFO, "Received checksum from server: {0} ", line);
+                EntityUtils.consume(responseEntity);
+                return localChecksum.equals(line);
             } else {
                 return false;
             }
-        } else {
+        }
+    }
+
+    /**
+     * The Base64 encoded SHA-1 of the local HAL zip of a firmware version. It is hashed while it is read and the result is kept in a sidecar file next to
+     * the zip, so the zip is only read again when its size or modification time changes.
+     *
+     * @return the checksum or null if there is no local HAL for the firmware
+     */
+    public String getLocalHalChecksum(String firmware) {
+        if ( !this.halStore.contains(firmware) ) {
+            return null;
+        }
+        File zip = this.halStore.getZip(firmware);
+        File sidecar = checksumIndex(zip);
+        Properties index = new Properties();
+        if ( sidecar.isFile() ) {
+            try (InputStream in = new FileInputStream(sidecar)) {
+                index.load(in);
+            } catch ( IOException e ) {
+                index.clear();
+            }
+        }
+        String size = Long.toString(zip.length());
+        String lastModified = Long.toString(zip.lastModified());
+        if ( size.equals(index.getProperty("size")) && lastModified.equals(index.getProperty("lastModified")) && index.getProperty("sha1") != null ) {
+            return index.getProperty("sha1");
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[8192];
+            try (InputStream in = new FileInputStream(zip)) {
+                int len;
+                while ( (len = in.read(buffer)) >= 0 ) {
+                    digest.update(buffer, 0, len);
+                }
+            }
+            String checksum = Base64.getEncoder().encodeToString(digest.digest());
+            writeChecksumIndex(zip, checksum);
+            return checksum;
+        } catch ( NoSuchAlgorithmException | IOException e ) {
+            log.info("Could not compute the checksum of the local HAL: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void updateHal(String firmware) throws IOException {
+        updateHal(firmware, null);
+    }
+
+    /**
+     * @return the checksums of all HALs in the local store, keyed by firmware version
+     */
+    public Map<String, String> getLocalHalChecksums() {
+        Map<String, String> checksums = new HashMap<>();
+        for ( String firmware : this.halStore.getVersions() ) {
+            String checksum = getLocalHalChecksum(firmware);
+            if ( checksum != null ) {
+                checksums.put(firmware, checksum);
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * @return true if a HAL for the firmware is in the local store, e.g. to go on without the server
+     */
+    public boolean hasLocalHal(String firmware) {
+        return this.halStore.contains(firmware);
+    }
+
+    /**
+     * Download the HAL for the firmware unless the local one is current. The request carries the checksum of the local HAL as entity tag, a server which
+     * knows that it is current answers 304 without content. A server which is not known to answer such requests is asked for the checksum first, whether
+     * it does is remembered in the {@link HalStore}. Otherwise the zip is hashed, stored and extracted in one pass while it is downloaded. The
+     * extracted files replace the old ones only after the download is complete and, if the server sent the checksum as entity tag, the checksum was
+     * verified, so a half extracted HAL is never used.
+     *
+     * @param firmware the firmware version of the robot
+     * @param localChecksum the checksum from {@link #getLocalHalChecksum(String)} or null to download the HAL unconditionally
+     * @return true if a new HAL was installed, false if the local one is current
+     */
+    public boolean updateHal(String firmware, String localChecksum) throws IOException {
+        String server = this.endpoints.current().toString();
+        if ( localChecksum != null && this.halStore.getConditionalRequests(server) != Boolean.TRUE && verifyHalChecksum(firmware, localChecksum) ) {
+            // the server may ignore entity tags, ask for the checksum instead of downloading the HAL
+            this.halStore.touch(firmware);
             return false;
         }
+        HttpGet get = new HttpGet(this.endpoints.current().resolve(String.format(UPDATE_PATH, firmware)));
+        get.setHeader("User-Agent", "Java/1.7.0_60");
+        if ( localChecksum != null ) {
+            get.setHeader("If-None-Match", "\"" + localChecksum + "\"");
+        }
+        try (CloseableHttpResponse response = this.connections.getBulkClient().execute(get)) {
+            int status = response.getStatusLine().getStatusCode();
+            if ( status == HttpStatus.SC_NOT_MODIFIED ) {
+                this.halStore.setConditionalRequests(server, true);
+                this.halStore.touch(firmware);
+                log.info("Local HAL " + firmware + " is up to date");
+                return false;
+            }
+            HttpEntity responseEntity = response.getEntity();
+            if ( status != HttpStatus.SC_OK || responseEntity == null ) {
+                throw new IOException("HAL download failed with status " + status);
+            }
+            String expected = checksumTag(response);
+            this.halStore.setConditionalRequests(server, expected != null);
+            try (InputStream content = responseEntity.getContent()) {
+                installHal(firmware, content, expected);
+            }
+        }
+        return true;
     }
 
-    public void updateHal(String firmware) throws IOException, ZipException {
-        FileUtils.copyURLToFile(new URL(String.format(this.serverUpdateAddress, firmware)), new File(this.halZipPath));
-        File dataFile = new File(this.halZipPath);
-        ZipFile zipFile = new ZipFile(dataFile);
-        zipFile.extractAll(this.workingDirectory);
-        log.info("New HAL downloaded and unzipped");
+    /**
+     * @return the checksum of the HAL sent as entity tag, null if there is no entity tag or it is not a checksum
+     */
+    private static String checksumTag(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if ( etag == null ) {
+            return null;
+        }
+        String tag = etag.getValue().trim().replaceFirst("^W/", "").replace("\"", "");
+        if ( !CHECKSUM_TAG.matcher(tag).matches() ) {
+            log.info("Entity tag " + etag.getValue() + " of the HAL is not a checksum, it is not verified");
+            return null;
+        }
+        return tag;
+    }
+
+    private void installHal(String firmware, InputStream content, String expectedChecksum) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IOException(e);
+        }
+        this.halStore.evict(firmware);
+        File zip = this.halStore.getZip(firmware);
+        File workingDir = this.halStore.getVersionDirectory(firmware);
+        workingDir.mkdirs();
+        File zipPart = new File(zip.getPath() + ".part");
+        File extracted = Files.createTempDirectory(workingDir.toPath(), ".hal").toFile();
+        try {
+            try (OutputStream zipOut = new FileOutputStream(zipPart)) {
+                InputStream in = new TeeInputStream(new DigestInputStream(content, digest), zipOut);
+                ZipInputStream unzip = new ZipInputStream(in);
+                ZipEntry entry;
+                while ( (entry = unzip.getNextEntry()) != null ) {
+                    File target = new File(extracted, entry.getName());
+                    if ( !target.getCanonicalPath().startsWith(extracted.getCanonicalPath() + File.separator) ) {
+                        throw new IOException("Invalid entry in HAL zip: " + entry.getName());
+                    }
+                    if ( entry.isDirectory() ) {
+                        target.mkdirs();
+                    } else {
+                        target.getParentFile().mkdirs();
+                        Files.copy(unzip, target.toPath());
+                    }
+                }
+                // the central directory is not read by the zip stream but is part of the checksum
+                IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+            String checksum = Base64.getEncoder().encodeToString(digest.digest());
+            if ( expectedChecksum != null && !expectedChecksum.equals(checksum) ) {
+                throw new IOException("Checksum of downloaded HAL is " + checksum + " instead of " + expectedChecksum);
+            }
+            File[] entries = extracted.listFiles();
+            if ( entries == null || entries.length == 0 ) {
+                throw new IOException("Downloaded HAL is empty");
+            }
+            for ( File source : entries ) {
+                swap(source, new File(workingDir, source.getName()));
+            }
+            Files.move(zipPart.toPath(), zip.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeChecksumIndex(zip, checksum);
+            this.halStore.touch(firmware);
+            log.info("New HAL " + firmware + " downloaded and unzipped, checksum " + checksum);
+        } finally {
+            FileUtils.deleteQuietly(extracted);
+            FileUtils.deleteQuietly(zipPart);
+        }
+    }
+
+    /**
+     * Replace the target by the source with renames only, so the target is either the old or the new version.
+     */
+    private static void swap(File source, File target) throws IOException {
+        if ( !target.exists() ) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        File old = new File(target.getParentFile(), "." + target.getName() + ".old");
+        FileUtils.deleteQuietly(old);
+        Files.move(target.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch ( IOException e ) {
+            Files.move(old.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+        }
+        FileUtils.deleteQuietly(old);
+    }
+
+    private static File checksumIndex(File zip) {
+        return new File(zip.getPath() + ".checksum");
+    }
+
+    private static void writeChecksumIndex(File zip, String checksum) throws IOException {
+        Properties index = new Properties();
+        index.setProperty("size", Long.toString(zip.length()));
+        index.setProperty("lastModified", Long.toString(zip.lastModified()));
+        index.setProperty("sha1", checksum);
+        try (OutputStream out = new FileOutputStream(checksumIndex(zip))) {
+            index.store(out, "checksum of " + zip.getName());
+        }
     }
 
     /**
-     * Cancel a pending push request (which is blocking in another thread), if the user wants to disconnect.
+     * Cancel all pending requests (e.g. a push request blocking in another thread), if the user wants to disconnect.
      */
     public void abort() {
-        if ( this.post != null ) {
-            this.post.abort();
+        for ( ServerRequest<?> pending : this.pendingRequests ) {
+            pending.cancel(true);
         }
     }
 
@@ -195,10 +664,7 @@ public class ServerCommunicator {
      * Shut down the http client.
      */
     public void shutdown() {
-        try {
-            this.httpclient.close();
-        } catch ( IOException e ) {
-            // ok
-        }
+        this.endpoints.stopProbes();
+        this.connections.close();
     }
 }
@@ -0,0 +1,220 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * The http connections to the server. The long polls of the push requests block a connection for up to the server's hold time, so they get a pool of
+ * their own and cannot starve the program downloads and HAL updates, which use the bulk pool. Both pools share one TLS context, so TLS sessions are resumed
+ * instead of negotiated again for every new connection. Connections idle for a while are checked before they are reused.
+ * <p>
+ * All settings are optional properties of the connector:
+ *
+ * <pre>
+ * httpConnectTimeout       ms to establish a connection (5000)
+ * httpPushTimeout          ms to wait for the answer of a push request, longer than the hold time of the server (30000)
+ * httpBulkTimeout          ms without data during a download (60000)
+ * httpMaxPushConnections   long polls at the same time, one per robot (2)
+ * httpMaxBulkConnections   downloads at the same time (4)
+ * httpRetries              attempts of a push request or download before the connection is given up (6)
+ * httpRetryBaseDelay       ms, upper bound of the random delay before the first retry, doubled for each further retry (500)
+ * httpRetryMaxDelay        ms, cap of the delay between two attempts (15000)
+ * </pre>
+ */
+public class ServerConnectionPool {
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+    private static final long MAX_IDLE_TIME = 60;
+    private static final int TLS_SESSION_TIMEOUT = 3600;
+
+    private final int connectTimeout;
+    private final int pushTimeout;
+    private final int bulkTimeout;
+    private final PoolingHttpClientConnectionManager pushConnections;
+    private final PoolingHttpClientConnectionManager bulkConnections;
+    private final CloseableHttpClient pushClient;
+    private final CloseableHttpClient bulkClient;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param serverProps the properties of the connector, may be null to use the defaults
+     */
+    public ServerConnectionPool(ResourceBundle serverProps) {
+        this.connectTimeout = getInt(serverProps, "httpConnectTimeout", 5000);
+        this.pushTimeout = getInt(serverProps, "httpPushTimeout", 30000);
+        this.bulkTimeout = getInt(serverProps, "httpBulkTimeout", 60000);
+        this.retryPolicy =
+            new RetryPolicy(
+                getInt(serverProps, "httpRetries", 6),
+                getInt(serverProps, "httpRetryBaseDelay", 500),
+                getInt(serverProps, "httpRetryMaxDelay", 15000));
+
+        SSLContext sslContext = SSLContexts.createSystemDefault();
+        sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+        Registry<ConnectionSocketFactory> socketFactories =
+            RegistryBuilder
+                .<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+
+        this.pushConnections = createConnectionManager(socketFactories, getInt(serverProps, "httpMaxPushConnections", 2));
+        this.bulkConnections = createConnectionManager(socketFactories, getInt(serverProps, "httpMaxBulkConnections", 4));
+        this.pushClient = createClient(this.pushConnections, this.pushTimeout);
+        this.bulkClient = createClient(this.bulkConnections, this.bulkTimeout);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "http-worker-" + this.count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "server-probes");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the client for the long polls of the push requests
+     */
+    public CloseableHttpClient getPushClient() {
+        return this.pushClient;
+    }
+
+    /**
+     * @return the client for program downloads and HAL updates
+     */
+    public CloseableHttpClient getBulkClient() {
+        return this.bulkClient;
+    }
+
+    /**
+     * @return the threads running the requests in the background, they mostly wait for the server
+     */
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * @return the thread for periodic tasks like the health probes of the servers
+     */
+    public ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * @return the retry policy of all requests using these connections
+     */
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * @param max the number of long polls which may be open at the same time, e.g. the number of robots
+     */
+    public void setMaxPushConnections(int max) {
+        this.pushConnections.setMaxTotal(max);
+        this.pushConnections.setDefaultMaxPerRoute(max);
+    }
+
+    /**
+     * @return leased, pending and available connections of the long poll pool
+     */
+    public PoolStats getPushStats() {
+        return this.pushConnections.getTotalStats();
+    }
+
+    /**
+     * @return leased, pending and available connections of the bulk pool
+     */
+    public PoolStats getBulkStats() {
+        return this.bulkConnections.getTotalStats();
+    }
+
+    /**
+     * Log the pool statistics if requests are waiting for a connection.
+     */
+    public void logIfQueuing() {
+        PoolStats push = getPushStats();
+        PoolStats bulk = getBulkStats();
+        if ( push.getPending() > 0 || bulk.getPending() > 0 ) {
+            log.info("Http requests are queuing, push pool " + push + ", bulk pool " + bulk);
+        }
+    }
+
+    public void close() {
+        this.executor.shutdownNow();
+        this.scheduler.shutdownNow();
+        try {
+            this.pushClient.close();
+            this.bulkClient.close();
+        } catch ( IOException e ) {
+            // ok
+        }
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactories, int max) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+        connectionManager.setMaxTotal(max);
+        connectionManager.setDefaultMaxPerRoute(max);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        return connectionManager;
+    }
+
+    private CloseableHttpClient createClient(PoolingHttpClientConnectionManager connectionManager, int socketTimeout) {
+        RequestConfig config =
+            RequestConfig
+                .custom()
+                .setConnectTimeout(this.connectTimeout)
+                .setConnectionRequestTimeout(socketTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+        return HttpClients
+            .custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(config)
+            // the connections are not bound to a user, so they can be reused after TLS
+            .disableConnectionState()
+            .evictIdleConnections(MAX_IDLE_TIME, TimeUnit.SECONDS)
+            .build();
+    }
+
+    private static int getInt(ResourceBundle serverProps, String key, int defaultValue) {
+        if ( serverProps == null || !serverProps.containsKey(key) ) {
+            return defaultValue;
+        }
+        return Integer.parseInt(serverProps.getString(key).trim());
+    }
+}
@@ -0,0 +1,205 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * The Open Roberta servers a connector may talk to, e.g. the server of the school and lab.open-roberta.org as fallback. They are given as comma separated
+ * list, an address uses https if it starts with https:// or its port is 443:
+ *
+ * <pre>
+ * 192.168.178.10:1999, lab.open-roberta.org:443
+ * </pre>
+ *
+ * If there is more than one endpoint, all are probed periodically for health and latency. The connector sticks to its endpoint as long as requests succeed,
+ * the fastest healthy one is chosen before registering and whenever the current one fails. Every change of the endpoint increments the generation, so the
+ * connector knows that it has to register its token at the new server.
+ */
+public class ServerEndpoints {
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static final long PROBE_INTERVAL = 30;
+    private static final int PROBE_TIMEOUT = 3000;
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final List<Endpoint> endpoints;
+    private volatile Endpoint current;
+    private volatile int generation = 0;
+    private ScheduledFuture<?> probes;
+
+    /**
+     * @param addresses comma separated server addresses in the order of preference
+     */
+    public ServerEndpoints(String addresses) {
+        List<Endpoint> parsed = new ArrayList<>();
+        for ( String address : addresses.split(",") ) {
+            if ( !address.trim().isEmpty() ) {
+                parsed.add(new Endpoint(address.trim()));
+            }
+        }
+        if ( parsed.isEmpty() ) {
+            throw new IllegalArgumentException("no server address in \"" + addresses + "\"");
+        }
+        this.endpoints = Collections.unmodifiableList(parsed);
+        this.current = parsed.get(0);
+    }
+
+    /**
+     * Probe all endpoints in the background, only if there is a choice.
+     */
+    public synchronized void startProbes(ScheduledExecutorService scheduler, final CloseableHttpClient client) {
+        if ( this.endpoints.size() < 2 || this.probes != null ) {
+            return;
+        }
+        this.probes = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeAll(client);
+            }
+        }, 0, PROBE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopProbes() {
+        if ( this.probes != null ) {
+            this.probes.cancel(true);
+            this.probes = null;
+        }
+    }
+
+    /**
+     * @return the endpoint to send requests to
+     */
+    public Endpoint current() {
+        return this.current;
+    }
+
+    /**
+     * @return a number which changes whenever requests go to another endpoint
+     */
+    public int getGeneration() {
+        return this.generation;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return this.endpoints;
+    }
+
+    /**
+     * Switch to the fastest healthy endpoint, e.g. before registering.
+     */
+    public synchronized void selectFastest() {
+        Endpoint fastest = null;
+        for ( Endpoint endpoint : this.endpoints ) {
+            if ( endpoint.healthy && (fastest == null || endpoint.latency < fastest.latency) ) {
+                fastest = endpoint;
+            }
+        }
+        if ( fastest != null ) {
+            switchTo(fastest);
+        }
+    }
+
+    /**
+     * A request to the endpoint failed. If it is the current one, the fastest other healthy endpoint takes over.
+     */
+    public synchronized void reportFailure(Endpoint endpoint) {
+        endpoint.healthy = false;
+        if ( endpoint == this.current ) {
+            selectFastest();
+        }
+    }
+
+    private synchronized void switchTo(Endpoint endpoint) {
+        if ( endpoint != this.current ) {
+            log.info("Switching from server " + this.current + " to " + endpoint);
+            this.current = endpoint;
+            this.generation++;
+        }
+    }
+
+    private void probeAll(CloseableHttpClient client) {
+        Endpoint current = this.current;
+        for ( Endpoint endpoint : this.endpoints ) {
+            endpoint.probe(client);
+        }
+        if ( !current.healthy ) {
+            // a single timeout, e.g. of a busy server, is no reason to leave it and register the token elsewhere
+            log.info("Probe of server " + current + " failed, probing it again");
+            current.probe(client);
+        }
+        if ( !this.current.healthy ) {
+            selectFastest();
+        }
+    }
+
+    /**
+     * One server with its health and smoothed latency.
+     */
+    public static class Endpoint {
+        private final String url;
+        private volatile boolean healthy = true;
+        private volatile double latency = Double.MAX_VALUE;
+
+        Endpoint(String address) {
+            if ( address.startsWith("http://") || address.startsWith("https://") ) {
+                this.url = address.endsWith("/") ? address.substring(0, address.length() - 1) : address;
+            } else if ( address.endsWith(":443") ) {
+                this.url = "https://" + address;
+            } else {
+                this.url = "http://" + address;
+            }
+        }
+
+        /**
+         * @param path the path on the server, e.g. /rest/pushcmd
+         * @return the url of the path on this server
+         */
+        public String resolve(String path) {
+            return this.url + path;
+        }
+
+        public boolean isHealthy() {
+            return this.healthy;
+        }
+
+        /**
+         * @return the smoothed time to the answer of a probe in ms
+         */
+        public double getLatency() {
+            return this.latency;
+        }
+
+        void probe(CloseableHttpClient client) {
+            HttpGet get = new HttpGet(resolve("/"));
+            get.setHeader("User-Agent", "Java/1.7.0_60");
+            get.setConfig(RequestConfig.custom().setConnectTimeout(PROBE_TIMEOUT).setSocketTimeout(PROBE_TIMEOUT).build());
+            long start = System.nanoTime();
+            try (CloseableHttpResponse response = client.execute(get)) {
+                EntityUtils.consume(response.getEntity());
+                double millis = (System.nanoTime() - start) / 1e6;
+                this.healthy = response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+                this.latency = this.latency == Double.MAX_VALUE ? millis : (1 - LATENCY_WEIGHT) * this.latency + LATENCY_WEIGHT * millis;
+            } catch ( IOException e ) {
+                this.healthy = false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.url;
+        }
+    }
+}
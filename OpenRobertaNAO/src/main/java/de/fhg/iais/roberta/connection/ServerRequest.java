@@ -0,0 +1,52 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * A request to the server running in the background. It is completed with the processed answer of the server and can be used like any other future, e.g.
+ * to register callbacks. Cancelling it aborts the http request, so a blocking long poll ends immediately.
+ */
+public class ServerRequest<T> extends CompletableFuture<T> {
+    private final HttpRequestBase request;
+
+    ServerRequest(HttpRequestBase request) {
+        this.request = request;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        this.request.abort();
+        return cancelled;
+    }
+
+    /**
+     * Wait for the answer of the server.
+     *
+     * @return the answer
+     * @throws IOException if the server is unreachable or the request was cancelled
+     */
+    public T getResult() throws IOException {
+        try {
+            return get();
+        } catch ( CancellationException e ) {
+            throw new IOException("request cancelled", e);
+        } catch ( InterruptedException e ) {
+            cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            } else if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
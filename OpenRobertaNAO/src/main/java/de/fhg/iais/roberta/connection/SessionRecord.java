@@ -0,0 +1,116 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import de.fhg.iais.roberta.util.Utils;
+
+/**
+ * The last registration of a robot, kept in the working directory of the connector. After a restart the connector tries to resume it instead of
+ * registering a new token, see {@link Connector.State#RECONNECT}. A record is only resumed if it is younger than {@link #MAX_AGE}.
+ */
+public class SessionRecord {
+    public static final long MAX_AGE = 60 * 60 * 1000;
+
+    private static Logger log = Logger.getLogger("Connector");
+
+    private final String token;
+    private final String robotIp;
+    private final String firmware;
+    private final String halChecksum;
+    private final String brickName;
+    private final long savedAt;
+
+    public SessionRecord(String token, String robotIp, String firmware, String halChecksum, String brickName) {
+        this(token, robotIp, firmware, halChecksum, brickName, System.currentTimeMillis());
+    }
+
+    private SessionRecord(String token, String robotIp, String firmware, String halChecksum, String brickName, long savedAt) {
+        this.token = token;
+        this.robotIp = robotIp;
+        this.firmware = firmware;
+        this.halChecksum = halChecksum;
+        this.brickName = brickName;
+        this.savedAt = savedAt;
+    }
+
+    /**
+     * @return the record of the robot or null if there is none or it is too old to be resumed
+     */
+    public static SessionRecord load(String robotIp) {
+        File file = getFile(robotIp);
+        if ( !file.isFile() ) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+            SessionRecord record =
+                new SessionRecord(
+                    props.getProperty("token"),
+                    props.getProperty("robotIp"),
+                    props.getProperty("firmware"),
+                    props.getProperty("halChecksum", ""),
+                    props.getProperty("brickName", ""),
+                    Long.parseLong(props.getProperty("savedAt")));
+            if ( record.token == null || record.firmware == null || !robotIp.equals(record.robotIp) || System.currentTimeMillis() - record.savedAt > MAX_AGE ) {
+                delete(robotIp);
+                return null;
+            }
+            return record;
+        } catch ( IOException | RuntimeException e ) {
+            log.info("Could not read the session record " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void save() {
+        Properties props = new Properties();
+        props.setProperty("token", this.token);
+        props.setProperty("robotIp", this.robotIp);
+        props.setProperty("firmware", this.firmware);
+        props.setProperty("halChecksum", this.halChecksum == null ? "" : this.halChecksum);
+        props.setProperty("brickName", this.brickName);
+        props.setProperty("savedAt", Long.toString(this.savedAt));
+        File file = getFile(this.robotIp);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "last registration of " + this.robotIp);
+        } catch ( IOException e ) {
+            log.info("Could not write the session record " + file + ": " + e.getMessage());
+        }
+    }
+
+    public static void delete(String robotIp) {
+        getFile(robotIp).delete();
+    }
+
+    public String getToken() {
+        return this.token;
+    }
+
+    public String getFirmware() {
+        return this.firmware;
+    }
+
+    /**
+     * @return the checksum of the HAL when the record was saved, empty if it was not known
+     */
+    public String getHalChecksum() {
+        return this.halChecksum;
+    }
+
+    public String getBrickName() {
+        return this.brickName;
+    }
+
+    private static File getFile(String robotIp) {
+        return new File(Utils.getWorkingDirectory(), "session-" + robotIp.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+    }
+}
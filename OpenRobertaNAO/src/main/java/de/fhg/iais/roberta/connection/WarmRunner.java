@@ -0,0 +1,145 @@
+package de.fhg.iais.roberta.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A python process on the robot which keeps a warm Hal and runs the programs sent to it, so a program neither waits for the interpreter nor for the
+ * proxies of the Hal. The script is roberta_runner.py from the resources, it is started by the connector and runs until the HAL or the script changes.
+ * <p>
+ * The runner is identified by a version, the hash of the script and the HAL manifest. A program is only sent to a runner of the current version, if it
+ * is still warming up the launch waits for it. Otherwise the program is launched with a cold python as before and the runner is (re)started afterwards,
+ * see {@link #startCommand(String, String, String)}. The runner only starts to warm up when the cold program ended, so the two never create their
+ * proxies at the same time.
+ */
+public class WarmRunner {
+    /**
+     * "&lt;pid&gt; &lt;version&gt;" of the runner, written when it is started
+     */
+    public static final String PID_FILE = "/tmp/roberta_runner.pid";
+    /**
+     * created by the runner as soon as it is warm, it reads the paths of the programs to run from it
+     */
+    public static final String FIFO = "/tmp/roberta_runner.fifo";
+
+    static final String SCRIPT = "roberta_runner.py";
+    private static final String LOG_FILE = "/tmp/roberta_runner.log";
+
+    /**
+     * the time a launch waits for a runner warming up, in steps of 0.2 s
+     */
+    private static final int WARM_UP_STEPS = 100;
+
+    private final byte[] script;
+
+    public WarmRunner() throws IOException {
+        try (InputStream in = WarmRunner.class.getClassLoader().getResourceAsStream(SCRIPT)) {
+            if ( in == null ) {
+                throw new IOException(SCRIPT + " not found");
+            }
+            this.script = IOUtils.toByteArray(in);
+        }
+    }
+
+    /**
+     * @return the content of roberta_runner.py
+     */
+    public byte[] getScript() {
+        return this.script;
+    }
+
+    /**
+     * @param halManifest the manifest of the HAL on the robot
+     * @return the version of a runner with this script and HAL
+     */
+    public String version(HalManifest halManifest) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(this.script);
+            digest.update(halManifest.toBytes());
+            return HalManifest.toHex(digest.digest()).substring(0, 16);
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A command which sends the program to the runner if it is warm and has the version, otherwise it launches the program with the cold command. A
+     * runner of the version which is still warming up is waited for. It prints "warm" or "cold".
+     *
+     * @param program the absolute path of the program on the robot
+     * @param coldLaunch the command starting a cold python in the background and writing its pid to {@link NAOStateMonitor#PID_FILE}
+     */
+    public String launchCommand(String program, String version, String coldLaunch) {
+        return "if read p v 2>/dev/null < "
+            + PID_FILE
+            + " && [ \"$v\" = "
+            + version
+            + " ]; then i=0; while [ ! -p "
+            + FIFO
+            + " ] && [ $i -lt "
+            + WARM_UP_STEPS
+            + " ] && kill -0 $p 2>/dev/null; do sleep 0.2; i=$((i+1)); done; fi; "
+            + "if read p v 2>/dev/null < "
+            + PID_FILE
+            + " && [ \"$v\" = "
+            + version
+            + " ] && kill -0 $p 2>/dev/null && [ -p "
+            + FIFO
+            + " ]; then echo $p > "
+            + NAOStateMonitor.PID_FILE
+            + " && echo "
+            + program
+            + " > "
+            + FIFO
+            + " && echo warm; else "
+            + coldLaunch
+            + "; echo cold; fi";
+    }
+
+    /**
+     * A command which reads the script from stdin and starts the runner in the background, unless a runner of the version is already running or warming
+     * up. A runner of another version is stopped.
+     *
+     * @param home the home directory of the user on the robot, the script is stored there
+     * @param environment commands preparing the environment of python, e.g. the NAOqi environment of old firmware, may be empty
+     */
+    public String startCommand(String home, String version, String environment) {
+        return "cat > "
+            + home
+            + "/"
+            + SCRIPT
+            + ".part && mv -f "
+            + home
+            + "/"
+            + SCRIPT
+            + ".part "
+            + home
+            + "/"
+            + SCRIPT
+            + "; if read p v 2>/dev/null < "
+            + PID_FILE
+            + " && kill -0 $p 2>/dev/null; then [ \"$v\" = "
+            + version
+            + " ] && exit 0; kill $p; fi; "
+            + environment
+            + "cd "
+            + home
+            + " && export PYTHONPATH="
+            + home
+            + "${PYTHONPATH:+:$PYTHONPATH}; nohup python "
+            + SCRIPT
+            + " "
+            + version
+            + " > "
+            + LOG_FILE
+            + " 2>&1 < /dev/null & echo \"$! "
+            + version
+            + "\" > "
+            + PID_FILE;
+    }
+}
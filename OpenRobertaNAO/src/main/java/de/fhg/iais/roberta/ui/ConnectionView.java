@@ -368,6 +368,10 @@ public class ConnectionView extends JFrame {
         return this.robotIp.getText();
     }
 
+    public void setRobotIp(String robotIp) {
+        this.robotIp.setText(robotIp);
+    }
+
     public String getRobotUserName() {
         return this.username.getText();
     }
@@ -170,6 +170,10 @@ public class UIController<ObservableObject> implements Observer {
             case WAIT_FOR_CONNECT_BUTTON_PRESS:
                 //this.conView.setNew(this.connector.getBrickName());
                 this.conView.setWaitForConnect();
+                String discoveredIp = this.connector.getRobotIp();
+                if ( this.conView.getRobotIp().equals("0.0.0.0") && !discoveredIp.isEmpty() && !discoveredIp.equals("0.0.0.0") ) {
+                    this.conView.setRobotIp(discoveredIp);
+                }
                 break;
             case WAIT_FOR_SERVER:
                 this.conView.setNew(this.rb.getString("token") + " " + this.connector.getToken());
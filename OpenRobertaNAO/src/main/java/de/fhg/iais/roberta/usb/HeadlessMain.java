@@ -0,0 +1,330 @@
+package de.fhg.iais.roberta.usb;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.pool.PoolStats;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.fhg.iais.roberta.connection.Connector;
+import de.fhg.iais.roberta.connection.NAOConnector;
+import de.fhg.iais.roberta.connection.NAOFleet;
+import de.fhg.iais.roberta.connection.RetryPolicy;
+
+/**
+ * Runs the connector without gui, e.g. on a lab server or a Raspberry Pi in the robot room. The robots are taken from the properties file or from the
+ * command line and are connected automatically. A small http interface on localhost reports the state of all robots and allows to connect or disconnect
+ * them:
+ *
+ * <pre>
+ * java -jar OpenRobertaNAO.jar --headless [--config file] [--server host:port] [--robot ip[,user,password]]... [--control-port port]
+ *
+ * GET  /state                  state, token and name of all robots
+ * GET  /pool                   leased, pending and available http connections to the server, retries and give-ups
+ * POST /connect?robot=ip       register the robot again
+ * POST /disconnect?robot=ip    disconnect the robot
+ * </pre>
+ *
+ * In the properties file robots are listed as "robots = ip,user,password;ip,user,password".
+ */
+public class HeadlessMain {
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static final int DEFAULT_CONTROL_PORT = 1998;
+
+    public static boolean isHeadless(String[] args) {
+        for ( String arg : args ) {
+            if ( arg.equals("--headless") ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) {
+        Main.configureLogger();
+        try {
+            run(args);
+        } catch ( Exception e ) {
+            log.severe("Headless connector could not be started: " + e.getMessage());
+            Main.stopFileLogger();
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) throws IOException {
+        String config = null;
+        String server = null;
+        int controlPort = DEFAULT_CONTROL_PORT;
+        List<String> robots = new ArrayList<>();
+        for ( int i = 0; i < args.length; i++ ) {
+            switch ( args[i] ) {
+                case "--config":
+                    config = args[++i];
+                    break;
+                case "--server":
+                    server = args[++i];
+                    break;
+                case "--robot":
+                    robots.add(args[++i]);
+                    break;
+                case "--control-port":
+                    controlPort = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        ResourceBundle serverProps = loadServerProps(config);
+        if ( robots.isEmpty() && serverProps.containsKey("robots") ) {
+            for ( String robot : serverProps.getString("robots").split(";") ) {
+                if ( !robot.trim().isEmpty() ) {
+                    robots.add(robot.trim());
+                }
+            }
+        }
+        if ( serverProps.containsKey("controlPort") ) {
+            controlPort = Integer.parseInt(serverProps.getString("controlPort").trim());
+        }
+        if ( robots.isEmpty() ) {
+            throw new IllegalArgumentException("no robots configured, use --robot ip[,user,password]");
+        }
+
+        final NAOFleet fleet = new NAOFleet(serverProps);
+        AutoConnect autoConnect = new AutoConnect(fleet.getConnections().getScheduler());
+        for ( String robot : robots ) {
+            String[] parts = robot.split(",");
+            String user = parts.length > 1 ? parts[1] : "nao";
+            String password = parts.length > 2 ? parts[2] : "nao";
+            NAOConnector connector = fleet.addRobot(parts[0], user, password);
+            if ( server != null ) {
+                connector.updateCustomServerAddress(server);
+            }
+            connector.addObserver(autoConnect);
+        }
+        final HttpServer control = startControlServer(fleet, autoConnect, controlPort);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                log.info("Shutting down headless connector");
+                control.stop(0);
+                fleet.close();
+                Main.stopFileLogger();
+            }
+        });
+        fleet.start();
+        log.info("Headless connector started for " + robots.size() + " robots, control interface on localhost:" + controlPort);
+    }
+
+    private static ResourceBundle loadServerProps(String config) throws IOException {
+        if ( config == null ) {
+            return ResourceBundle.getBundle("OpenRobertaNAO");
+        }
+        try (InputStream in = new FileInputStream(config)) {
+            return new PropertyResourceBundle(in);
+        }
+    }
+
+    private static HttpServer startControlServer(final NAOFleet fleet, final AutoConnect autoConnect, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/state", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                JSONArray robots = new JSONArray();
+                for ( NAOConnector connector : fleet.getConnectors() ) {
+                    JSONObject robot = new JSONObject();
+                    robot.put("robot", connector.getRobotIp());
+                    robot.put("state", connector.getState().toString());
+                    robot.put("token", connector.getToken());
+                    robot.put("brickname", connector.getBrickName());
+                    robots.put(robot);
+                }
+                respond(exchange, 200, robots.toString());
+            }
+        });
+        server.createContext("/pool", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                JSONObject pool = new JSONObject();
+                pool.put("push", toJson(fleet.getConnections().getPushStats()));
+                pool.put("bulk", toJson(fleet.getConnections().getBulkStats()));
+                pool.put("retries", fleet.getConnections().getRetryPolicy().getRetries());
+                pool.put("giveUps", fleet.getConnections().getRetryPolicy().getGiveUps());
+                respond(exchange, 200, pool.toString());
+            }
+        });
+        server.createContext("/connect", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ( !isPost(exchange) ) {
+                    return;
+                }
+                NAOConnector connector = findRobot(fleet, exchange.getRequestURI());
+                if ( connector == null ) {
+                    respond(exchange, 404, "{\"error\":\"unknown robot\"}");
+                    return;
+                }
+                autoConnect.resume(connector);
+                connector.userPressConnectButton();
+                respond(exchange, 202, "{}");
+            }
+        });
+        server.createContext("/disconnect", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ( !isPost(exchange) ) {
+                    return;
+                }
+                NAOConnector connector = findRobot(fleet, exchange.getRequestURI());
+                if ( connector == null ) {
+                    respond(exchange, 404, "{\"error\":\"unknown robot\"}");
+                    return;
+                }
+                autoConnect.pause(connector);
+                connector.userPressDisconnectButton();
+                respond(exchange, 202, "{}");
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static JSONObject toJson(PoolStats stats) {
+        JSONObject json = new JSONObject();
+        json.put("leased", stats.getLeased());
+        json.put("pending", stats.getPending());
+        json.put("available", stats.getAvailable());
+        json.put("max", stats.getMax());
+        return json;
+    }
+
+    /**
+     * Actions change the state of a robot, so they are only taken from a POST and never from a browser following or prefetching a link.
+     *
+     * @return true if the request is a POST, otherwise it is answered with 405
+     */
+    private static boolean isPost(HttpExchange exchange) throws IOException {
+        if ( exchange.getRequestMethod().equals("POST") ) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "POST");
+        respond(exchange, 405, "{\"error\":\"use POST\"}");
+        return false;
+    }
+
+    private static NAOConnector findRobot(NAOFleet fleet, URI uri) {
+        String query = uri.getQuery();
+        if ( query == null || !query.startsWith("robot=") ) {
+            return null;
+        }
+        String ip = query.substring("robot=".length());
+        for ( NAOConnector connector : fleet.getConnectors() ) {
+            if ( connector.getRobotIp().equals(ip) ) {
+                return connector;
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Without a gui nobody presses the connect button, so every robot is registered as soon as it waits for it, unless it was disconnected via the
+     * control interface. After an error the registration is delayed, the delay grows with every error in a row up to five minutes, so an unreachable
+     * robot or server is not tried again and again. State changes and tokens are logged.
+     */
+    private static class AutoConnect implements Observer {
+        private static final Set<Connector.State> ERRORS =
+            EnumSet.of(
+                Connector.State.ERROR_HTTP,
+                Connector.State.ERROR_UPDATE,
+                Connector.State.ERROR_BRICK,
+                Connector.State.ERROR_DOWNLOAD,
+                Connector.State.ERROR_NOT_FOUND);
+
+        private final RetryPolicy backoff = new RetryPolicy(Integer.MAX_VALUE, 2000, 5 * 60 * 1000);
+        private final ScheduledExecutorService scheduler;
+        private final Set<NAOConnector> paused = Collections.newSetFromMap(new ConcurrentHashMap<NAOConnector, Boolean>());
+        private final Map<NAOConnector, Integer> errorsInARow = new ConcurrentHashMap<>();
+
+        AutoConnect(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        void pause(NAOConnector connector) {
+            this.paused.add(connector);
+        }
+
+        void resume(NAOConnector connector) {
+            this.paused.remove(connector);
+            this.errorsInARow.remove(connector);
+        }
+
+        @Override
+        public void update(Observable o, Object arg) {
+            NAOConnector connector = (NAOConnector) o;
+            Connector.State state = (Connector.State) arg;
+            log.info("Robot " + connector.getRobotIp() + ": " + state);
+            if ( state == Connector.State.WAIT_FOR_SERVER ) {
+                log.info("Robot " + connector.getRobotIp() + " token: " + connector.getToken());
+            } else if ( state == Connector.State.WAIT_FOR_CMD ) {
+                this.errorsInARow.remove(connector);
+            } else if ( ERRORS.contains(state) ) {
+                Integer errors = this.errorsInARow.get(connector);
+                this.errorsInARow.put(connector, errors == null ? 1 : errors + 1);
+            } else if ( state == Connector.State.WAIT_FOR_CONNECT_BUTTON_PRESS && !this.paused.contains(connector) ) {
+                Integer errors = this.errorsInARow.get(connector);
+                if ( errors == null ) {
+                    connector.userPressConnectButton();
+                } else {
+                    long delay = this.backoff.delay(errors);
+                    log.info("Robot " + connector.getRobotIp() + ": connecting again in " + delay + " ms after " + errors + " errors");
+                    connectLater(connector, delay);
+                }
+            }
+        }
+
+        private void connectLater(final NAOConnector connector, long delay) {
+            this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if ( !AutoConnect.this.paused.contains(connector) && connector.getState() == Connector.State.WAIT_FOR_CONNECT_BUTTON_PRESS ) {
+                        connector.userPressConnectButton();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
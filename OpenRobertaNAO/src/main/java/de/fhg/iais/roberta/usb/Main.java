@@ -37,6 +37,10 @@ public class Main {
     private static boolean startupFinish = false;
 
     public static void main(String[] args) {
+        if ( HeadlessMain.isHeadless(args) ) {
+            HeadlessMain.main(args);
+            return;
+        }
         configureLogger();
         new File(System.getProperty("user.home") + "/OpenRoberta").mkdirs();
         SwingUtilities.invokeLater(new Runnable() {
@@ -112,6 +116,9 @@ public class Main {
      * Flush and close the file handler before closing the USB program.
      */
     public static void stopFileLogger() {
+        if ( fileHandler == null ) {
+            return;
+        }
         fileHandler.flush();
         fileHandler.close();
     }
@@ -120,7 +127,7 @@ public class Main {
      * Set up a file handler for writing a log file to either %APPDATA% on windows, or user.home on linux or mac. The USB program will log all important actions
      * and events.
      */
-    private static void configureLogger() {
+    static void configureLogger() {
         String path = "";
         try {
             if ( SystemUtils.IS_OS_WINDOWS ) {
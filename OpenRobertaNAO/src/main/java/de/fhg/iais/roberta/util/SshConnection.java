@@ -1,23 +1,31 @@
 package de.fhg.iais.roberta.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Properties;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
+/**
+ * Runs commands and copies files on a robot via ssh. The underlying session is taken from the {@link SshSessionPool}, so creating and disconnecting
+ * connections is cheap as long as the robot stays the same.
+ */
 public class SshConnection {
     private static Logger log = Logger.getLogger("Connector");
-    private final Properties config = new java.util.Properties();
-    private final JSch jSch = new JSch();
+    private static final int EXIT_STATUS_POLL = 5;
+    private static final SecureRandom MARKERS = new SecureRandom();
+    private final SshSessionPool pool = SshSessionPool.getInstance();
     private String host;
     private int port;
     private String username;
@@ -29,24 +37,21 @@ public class SshConnection {
         this.port = port;
         this.username = username;
         this.password = password;
-
-        this.config.put("StrictHostKeyChecking", "no");
-
     }
 
+    /**
+     * Get a session for the robot from the pool. Kept for callers which separate session creation from connecting.
+     */
     public void createSession() throws JSchException {
-        this.session = this.jSch.getSession(this.username, this.host, this.port);
-        this.session.setConfig(this.config);
-        this.session.setPassword(this.password);
-
+        connect();
     }
 
     public void updateRobotInfo(String host, int port, String username, String password) throws JSchException {
+        disconnect();
         this.host = host;
         this.port = port;
         this.username = username;
         this.password = password;
-        createSession();
     }
 
     /**
@@ -57,17 +62,39 @@ public class SshConnection {
      * @throws
      */
     public String command(String command) throws JSchException, IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitStatus = exec(command, out, err);
+        if ( exitStatus == 0 ) {
+            return out.toString();
+        } else {
+            log.info(err.toString());
+            return "";
+        }
+    }
+
+    /**
+     * run an ssh command and stream its stdout and stderr to the given streams while it is produced. Returns as soon as the remote side has reported
+     * the exit status, there is no polling delay.
+     *
+     * @return the exit status of the command
+     * @throws JSchException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int exec(String command, OutputStream out, OutputStream err) throws JSchException, IOException, InterruptedException {
         ChannelExec channel = null;
-        String msg = null;
         try {
             this.connect();
             channel = (ChannelExec) this.session.openChannel("exec");
             channel.setCommand(command);
+            // stderr is written by the session thread directly
+            channel.setErrStream(err, true);
 
             InputStream in = channel.getInputStream();
-            InputStream err = channel.getExtInputStream();
             channel.connect();
-            msg = logChanngelMessages(channel, in, err);
+            copyUntilEof(in, out);
+            return waitForExitStatus(channel);
         } finally {
             try {
                 if ( channel != null ) {
@@ -77,7 +104,141 @@ public class SshConnection {
                 // OK
             }
         }
-        return msg;
+    }
+
+    /**
+     * run an ssh command and feed its stdin from the given writer, e.g. a tar archive for a remote "tar x". Stdin is closed after the writer is done,
+     * the output of the command is streamed to the given streams.
+     *
+     * @return the exit status of the command
+     * @throws JSchException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int exec(String command, StdinWriter stdin, OutputStream out, OutputStream err) throws JSchException, IOException, InterruptedException {
+        ChannelExec channel = null;
+        try {
+            this.connect();
+            channel = (ChannelExec) this.session.openChannel("exec");
+            channel.setCommand(command);
+            channel.setErrStream(err, true);
+
+            OutputStream remoteIn = channel.getOutputStream();
+            InputStream in = channel.getInputStream();
+            channel.connect();
+            stdin.writeTo(remoteIn);
+            remoteIn.close();
+            copyUntilEof(in, out);
+            return waitForExitStatus(channel);
+        } finally {
+            try {
+                if ( channel != null ) {
+                    channel.disconnect();
+                }
+            } catch ( Exception e ) {
+                // OK
+            }
+        }
+    }
+
+    /**
+     * run the commands one after the other in a single channel, so they cost one round trip. Every command is followed by a line with a random marker
+     * and its exit status on stdout and stderr, which separates the output of the commands. A command must not end the shell, e.g. with exit.
+     *
+     * @param failFast true to skip the remaining commands after the first one which failed
+     * @return the result of every command which was run, in order
+     * @throws JSchException
+     * @throws IOException also if the batch was cut off, e.g. because the channel dropped
+     * @throws InterruptedException
+     */
+    public List<BatchStep> execBatch(List<String> commands, boolean failFast) throws JSchException, IOException, InterruptedException {
+        String marker = "--roberta-step-" + Long.toHexString(MARKERS.nextLong());
+        StringBuilder script = new StringBuilder();
+        for ( String command : commands ) {
+            script.append("{ ").append(command).append("\n}; s=$?; ");
+            script.append("printf '\\n%s %d\\n' ").append(marker).append(" $s; printf '\\n%s %d\\n' ").append(marker).append(" $s >&2");
+            if ( failFast ) {
+                script.append("; [ $s -eq 0 ] || exit $s");
+            }
+            script.append("\n");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int shellStatus = exec(script.toString(), out, err);
+        return parseBatch(commands, failFast, marker, out.toString(StandardCharsets.UTF_8.name()), err.toString(StandardCharsets.UTF_8.name()), shellStatus);
+    }
+
+    /**
+     * split the output of a batch into its steps and check that the batch was not cut off. Only a batch with failFast may end early, with the failed step,
+     * and then the shell exits with the status of that step. Otherwise every command has its markers on stdout and stderr and the shell exits with 0.
+     *
+     * @param shellStatus the exit status of the shell running the batch, -1 if it did not send one
+     * @throws IOException if markers are missing or the status of the shell does not fit to the steps
+     */
+    static List<BatchStep> parseBatch(List<String> commands, boolean failFast, String marker, String out, String err, int shellStatus) throws IOException {
+        List<String> outputs = new ArrayList<>();
+        List<Integer> exitStatuses = new ArrayList<>();
+        split(out, marker, outputs, exitStatuses);
+        List<String> errors = new ArrayList<>();
+        split(err, marker, errors, new ArrayList<Integer>());
+        int count = outputs.size();
+        boolean stoppedAtFailure = failFast && count > 0 && exitStatuses.get(count - 1) != 0;
+        int expectedStatus = stoppedAtFailure ? exitStatuses.get(count - 1) : 0;
+        if ( count > commands.size() || errors.size() != count || (count < commands.size() && !stoppedAtFailure) || shellStatus != expectedStatus ) {
+            throw new IOException(
+                "Batch cut off after "
+                    + count
+                    + " of "
+                    + commands.size()
+                    + " commands ("
+                    + errors.size()
+                    + " on stderr, exit status of the shell "
+                    + shellStatus
+                    + ")");
+        }
+        List<BatchStep> steps = new ArrayList<>();
+        for ( int i = 0; i < count; i++ ) {
+            steps.add(new BatchStep(commands.get(i), exitStatuses.get(i), outputs.get(i), errors.get(i)));
+        }
+        if ( count < commands.size() ) {
+            log.info("Batch stopped after " + count + " of " + commands.size() + " commands");
+        }
+        return steps;
+    }
+
+    /**
+     * split the output of a batch at the marker lines
+     */
+    private static void split(String output, String marker, List<String> chunks, List<Integer> exitStatuses) {
+        String separator = "\n" + marker + " ";
+        int pos = 0;
+        int end;
+        while ( (end = output.indexOf(separator, pos)) >= 0 ) {
+            int eol = output.indexOf('\n', end + separator.length());
+            if ( eol < 0 ) {
+                return;
+            }
+            chunks.add(output.substring(pos, end));
+            exitStatuses.add(Integer.valueOf(output.substring(end + separator.length(), eol).trim()));
+            pos = eol + 1;
+        }
+    }
+
+    /**
+     * open a long-lived exec channel, e.g. a shell which is fed with commands over time. The output of the command is written to the given stream by the
+     * session thread. The caller is responsible for disconnecting the channel.
+     *
+     * @return the connected channel, its output stream is the stdin of the command
+     * @throws JSchException
+     */
+    public ChannelExec openChannel(String command, OutputStream out) throws JSchException {
+        this.connect();
+        ChannelExec channel = (ChannelExec) this.session.openChannel("exec");
+        channel.setCommand(command);
+        channel.setOutputStream(out, true);
+        channel.setErrStream(out, true);
+        channel.connect();
+        return channel;
     }
 
     /**
@@ -87,9 +248,19 @@ public class SshConnection {
      * @throws IOException
      */
     public void copyLocalToRemote(byte[] content, String to, String fileName) throws Exception {
+        copyLocalToRemote(new ByteArrayInputStream(content), content.length, to, fileName);
+    }
+
+    /**
+     * copy the content of a stream to remote without buffering it. The length must be known in advance. If not successful, throw an exception
+     *
+     * @throws JSchException
+     * @throws IOException
+     */
+    public void copyLocalToRemote(InputStream content, long length, String to, String fileName) throws Exception {
         ChannelExec channel = null;
-        InputStream fis = null;
         try {
+            this.connect();
             String command = "scp -p -t " + to;
             channel = (ChannelExec) this.session.openChannel("exec");
             channel.setCommand(command);
@@ -100,13 +271,11 @@ public class SshConnection {
             channel.connect();
             checkAck(in);
 
-            long filesize = content.length;
-            command = "C0644 " + filesize + " " + fileName + "\n";
+            command = "C0644 " + length + " " + fileName + "\n";
             out.write(command.getBytes());
             out.flush();
             checkAck(in);
-            fis = new ByteArrayInputStream(content);
-            sendFileContent(fis, out);
+            sendFileContent(content, out);
             checkAck(in);
         } finally {
             try {
@@ -117,9 +286,7 @@ public class SshConnection {
                 // OK
             }
             try {
-                if ( fis != null ) {
-                    fis.close();
-                }
+                content.close();
             } catch ( Exception e ) {
                 // OK
             }
@@ -174,37 +341,26 @@ public class SshConnection {
         }
     }
 
-    private String logChanngelMessages(ChannelExec channel, InputStream in, InputStream err) throws InterruptedException, IOException {
-        StringBuilder outputBuffer = new StringBuilder();
-        StringBuilder errorBuffer = new StringBuilder();
+    /**
+     * blocking read of the channel's stdout. The read returns -1 the moment the remote side closes stdout.
+     */
+    private void copyUntilEof(InputStream in, OutputStream out) throws IOException {
         byte[] tmp = new byte[1024];
-        while ( true ) {
-            readStream(in, outputBuffer, tmp);
-            readStream(err, errorBuffer, tmp);
-            if ( channel.isClosed() ) {
-                if ( (in.available() > 0) || (err.available() > 0) ) {
-                    continue;
-                }
-                if ( channel.getExitStatus() == 0 ) {
-                    return outputBuffer.toString();
-                } else {
-                    log.info(errorBuffer.toString());
-                    return "";
-                }
-
-            }
-            Thread.sleep(1000);
+        int i;
+        while ( (i = in.read(tmp, 0, tmp.length)) >= 0 ) {
+            out.write(tmp, 0, i);
+            out.flush();
         }
     }
 
-    private void readStream(InputStream in, StringBuilder outputBuffer, byte[] tmp) throws IOException {
-        while ( in.available() > 0 ) {
-            int i = in.read(tmp, 0, 1024);
-            if ( i < 0 ) {
-                break;
-            }
-            outputBuffer.append(new String(tmp, 0, i));
+    /**
+     * the exit status message follows the end of stdout immediately, but JSch offers no notification for it. Wait for it in small steps.
+     */
+    private int waitForExitStatus(ChannelExec channel) throws InterruptedException {
+        while ( channel.getExitStatus() == -1 && !channel.isClosed() ) {
+            Thread.sleep(EXIT_STATUS_POLL);
         }
+        return channel.getExitStatus();
     }
 
     private void sendFileContent(InputStream fis, OutputStream out) throws IOException {
@@ -265,6 +421,59 @@ public class SshConnection {
         throw new Exception("Error. code: " + b + " msg: " + sb.toString());
     }
 
+    /**
+     * Produces the stdin of a remote command.
+     */
+    public interface StdinWriter {
+        void writeTo(OutputStream stdin) throws IOException;
+    }
+
+    /**
+     * The result of one command of {@link SshConnection#execBatch(List, boolean)}.
+     */
+    public static class BatchStep {
+        private final String command;
+        private final int exitStatus;
+        private final String output;
+        private final String error;
+
+        BatchStep(String command, int exitStatus, String output, String error) {
+            this.command = command;
+            this.exitStatus = exitStatus;
+            this.output = output;
+            this.error = error;
+        }
+
+        public String getCommand() {
+            return this.command;
+        }
+
+        public int getExitStatus() {
+            return this.exitStatus;
+        }
+
+        /**
+         * @return the stdout of the command
+         */
+        public String getOutput() {
+            return this.output;
+        }
+
+        /**
+         * @return the stderr of the command
+         */
+        public String getError() {
+            return this.error;
+        }
+
+        /**
+         * @return the stdout of the command if it succeeded, an empty string otherwise, like {@link SshConnection#command(String)}
+         */
+        public String getOutputIfSucceeded() {
+            return this.exitStatus == 0 ? this.output : "";
+        }
+    }
+
     public String getHost() {
         return this.host;
     }
@@ -281,15 +490,40 @@ public class SshConnection {
         return this.password;
     }
 
+    /**
+     * Give the session back to the pool. The session itself stays open for the next connection to the same robot.
+     */
     public void disconnect() {
-        if ( this.session != null && this.session.isConnected() ) {
-            this.session.disconnect();
+        if ( this.session != null ) {
+            this.pool.release(this.session);
+            this.session = null;
         }
     }
 
+    /**
+     * Close the session for good, e.g. if the robot is not reachable any more.
+     */
+    public void invalidate() {
+        if ( this.session != null ) {
+            this.pool.invalidate(this.session);
+            this.session = null;
+        }
+    }
+
+    /**
+     * @return the fingerprint of the robot's host key, the connection is established if necessary
+     */
+    public String getHostKeyFingerPrint() throws JSchException {
+        connect();
+        return this.pool.getFingerPrint(this.session);
+    }
+
     public void connect() throws JSchException {
-        if ( !this.session.isConnected() ) {
-            this.session.connect(5000);
+        if ( this.session != null && !this.session.isConnected() ) {
+            invalidate();
+        }
+        if ( this.session == null ) {
+            this.session = this.pool.acquire(this.host, this.port, this.username, this.password);
         }
     }
 }
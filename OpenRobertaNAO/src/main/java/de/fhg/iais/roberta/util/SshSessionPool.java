@@ -0,0 +1,318 @@
+package de.fhg.iais.roberta.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Keeps authenticated ssh sessions alive between operations, so that repeated deployments to the same robot do not pay for the key exchange and the
+ * password authentication again. Sessions are keyed by host, port and user name, are kept alive by keepalive messages, are validated before they are
+ * handed out again and are evicted after being idle for too long. A session is connected and validated outside the lock of the pool, so an unreachable
+ * robot or a half-dead connection only delays the callers waiting for the same robot. A broken session is not handed out anymore, but it is only disconnected when its last lease is given
+ * back, so the other users of the session finish their operations.
+ */
+public class SshSessionPool {
+    private static Logger log = Logger.getLogger("Connector");
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int KEEPALIVE_INTERVAL = 10000;
+    private static final int KEEPALIVE_COUNT_MAX = 3;
+    static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+    private static final long EVICTION_PERIOD = 30 * 1000;
+
+    private static final SshSessionPool INSTANCE = new SshSessionPool();
+
+    private final JSch jSch = new JSch();
+    private final Properties config = new Properties();
+    private final Map<String, PooledSession> sessions = new HashMap<>();
+    private final Map<String, Connecting> connecting = new HashMap<>();
+    /**
+     * sessions removed from the pool while they were leased, disconnected when the last lease is given back
+     */
+    private final List<PooledSession> retired = new ArrayList<>();
+    private final ScheduledExecutorService evictor;
+
+    SshSessionPool() {
+        this.config.put("StrictHostKeyChecking", "no");
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ssh-session-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleSessions();
+            }
+        }, EVICTION_PERIOD, EVICTION_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the fingerprint of the host key the session was established with, it identifies the robot whatever its address is
+     */
+    public String getFingerPrint(Session session) {
+        return session.getHostKey().getFingerPrint(this.jSch);
+    }
+
+    /**
+     * @return the pool shared by all ssh connections of this process
+     */
+    public static SshSessionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a connected session for the given robot. An existing session is reused if it is still alive and was authenticated with the same password,
+     * otherwise a new session is opened.
+     *
+     * @return a connected session, which must be given back by {@link #release(Session)} or {@link #invalidate(Session)}
+     * @throws JSchException if no session could be established
+     */
+    public Session acquire(String host, int port, String username, String password) throws JSchException {
+        String key = key(host, port, username);
+        Connecting pending;
+        for ( ;; ) {
+            PooledSession reused = null;
+            synchronized ( this ) {
+                PooledSession pooled = this.sessions.get(key);
+                if ( pooled != null ) {
+                    if ( pooled.password.equals(password) && isConnected(pooled.session) ) {
+                        // leased before it is validated, so it is neither evicted nor handed to a new connection meanwhile
+                        pooled.leases++;
+                        pooled.lastUsed = System.currentTimeMillis();
+                        reused = pooled;
+                    } else {
+                        log.info("Dropping stale ssh session to " + key);
+                        retire(pooled);
+                    }
+                }
+                pending = this.connecting.get(key);
+                if ( reused == null && pending == null ) {
+                    pending = new Connecting(password);
+                    this.connecting.put(key, pending);
+                    break;
+                }
+            }
+            if ( reused != null ) {
+                if ( isAlive(reused.session) ) {
+                    log.fine("Reusing ssh session to " + key);
+                    return reused.session;
+                }
+                log.info("Dropping stale ssh session to " + key);
+                invalidate(reused.session);
+                continue;
+            }
+            // another thread connects to the robot, use its session or its failure
+            try {
+                pending.done.await();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new JSchException("interrupted while waiting for the ssh session to " + key);
+            }
+            if ( pending.failure != null && pending.password.equals(password) ) {
+                throw new JSchException(pending.failure.getMessage(), pending.failure);
+            }
+        }
+        return connect(key, pending, host, port, username, password);
+    }
+
+    /**
+     * Open a new session, the callers waiting for the key are released when it is pooled or failed.
+     */
+    private Session connect(String key, Connecting pending, String host, int port, String username, String password) throws JSchException {
+        try {
+            long start = System.currentTimeMillis();
+            Session session = open(host, port, username, password);
+            log.info("Opened ssh session to " + key + " in " + (System.currentTimeMillis() - start) + " ms");
+            PooledSession pooled = new PooledSession(session, password);
+            pooled.leases++;
+            synchronized ( this ) {
+                this.sessions.put(key, pooled);
+            }
+            return session;
+        } catch ( JSchException e ) {
+            pending.failure = e;
+            throw e;
+        } finally {
+            synchronized ( this ) {
+                this.connecting.remove(key);
+            }
+            pending.done.countDown();
+        }
+    }
+
+    /**
+     * Give a session back to the pool. The session stays connected and can be reused by the next {@link #acquire(String, int, String, String)}.
+     */
+    public synchronized void release(Session session) {
+        PooledSession pooled = find(session);
+        if ( pooled == null ) {
+            disconnect(session);
+            return;
+        }
+        pooled.leases = Math.max(0, pooled.leases - 1);
+        pooled.lastUsed = System.currentTimeMillis();
+        if ( pooled.leases == 0 && this.retired.remove(pooled) ) {
+            disconnect(pooled.session);
+        }
+    }
+
+    /**
+     * Give a session back and remove it from the pool, e.g. after an error on one of its channels. It is disconnected as soon as nobody else uses it.
+     */
+    public synchronized void invalidate(Session session) {
+        PooledSession pooled = find(session);
+        if ( pooled == null ) {
+            disconnect(session);
+            return;
+        }
+        pooled.leases = Math.max(0, pooled.leases - 1);
+        retire(pooled);
+    }
+
+    /**
+     * Remove a session from the pool. It is disconnected now if it is not leased, otherwise when its last lease is given back.
+     */
+    private void retire(PooledSession pooled) {
+        this.sessions.values().remove(pooled);
+        if ( pooled.leases > 0 ) {
+            if ( !this.retired.contains(pooled) ) {
+                this.retired.add(pooled);
+            }
+        } else {
+            this.retired.remove(pooled);
+            disconnect(pooled.session);
+        }
+    }
+
+    /**
+     * Disconnect all pooled sessions, used when the application shuts down.
+     */
+    public synchronized void shutdown() {
+        for ( PooledSession pooled : this.sessions.values() ) {
+            disconnect(pooled.session);
+        }
+        for ( PooledSession pooled : this.retired ) {
+            disconnect(pooled.session);
+        }
+        this.sessions.clear();
+        this.retired.clear();
+    }
+
+    void evictIdleSessions() {
+        evictIdleSessions(System.currentTimeMillis());
+    }
+
+    /**
+     * Disconnect the sessions which were closed by the robot or are idle since before {@link #IDLE_TIMEOUT}.
+     */
+    synchronized void evictIdleSessions(long now) {
+        Iterator<Map.Entry<String, PooledSession>> it = this.sessions.entrySet().iterator();
+        while ( it.hasNext() ) {
+            Map.Entry<String, PooledSession> entry = it.next();
+            PooledSession pooled = entry.getValue();
+            if ( !isConnected(pooled.session) || (pooled.leases == 0 && now - pooled.lastUsed > IDLE_TIMEOUT) ) {
+                log.info("Evicting idle ssh session to " + entry.getKey());
+                disconnect(pooled.session);
+                it.remove();
+            }
+        }
+    }
+
+    private PooledSession find(Session session) {
+        for ( PooledSession pooled : this.sessions.values() ) {
+            if ( pooled.session == session ) {
+                return pooled;
+            }
+        }
+        for ( PooledSession pooled : this.retired ) {
+            if ( pooled.session == session ) {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A session is reused only if its transport is still up. Sending a keepalive message detects a broken connection that JSch did not notice yet. It is a
+     * network write, so it is never sent while holding the lock of the pool.
+     */
+    private boolean isAlive(Session session) {
+        try {
+            sendKeepAlive(session);
+            return true;
+        } catch ( Exception e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Connect a new session, only replaced in tests.
+     */
+    Session open(String host, int port, String username, String password) throws JSchException {
+        Session session = this.jSch.getSession(username, host, port);
+        session.setConfig(this.config);
+        session.setPassword(password);
+        session.setServerAliveInterval(KEEPALIVE_INTERVAL);
+        session.setServerAliveCountMax(KEEPALIVE_COUNT_MAX);
+        session.connect(CONNECT_TIMEOUT);
+        return session;
+    }
+
+    boolean isConnected(Session session) {
+        return session.isConnected();
+    }
+
+    void sendKeepAlive(Session session) throws Exception {
+        session.sendKeepAliveMsg();
+    }
+
+    void disconnect(Session session) {
+        session.disconnect();
+    }
+
+    private static String key(String host, int port, String username) {
+        return username + "@" + host + ":" + port;
+    }
+
+    /**
+     * A session being connected by one thread, the others asking for the same robot wait for it.
+     */
+    private static class Connecting {
+        private final String password;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile JSchException failure;
+
+        Connecting(String password) {
+            this.password = password;
+        }
+    }
+
+    private static class PooledSession {
+        private final Session session;
+        private final String password;
+        private long lastUsed = System.currentTimeMillis();
+        private int leases = 0;
+
+        PooledSession(Session session, String password) {
+            this.session = session;
+            this.password = password;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package de.fhg.iais.roberta.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes regular files as a ustar archive to a stream. Only what is needed to ship the HAL and a user program to the robot is supported: plain files
+ * with names shorter than 100 characters.
+ */
+public class TarWriter {
+    private static final int BLOCK_SIZE = 512;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+
+    public TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * append a file with the given content to the archive
+     *
+     * @param name path of the file inside the archive, e.g. roberta/original_hal.py
+     */
+    public void putFile(String name, byte[] content, long lastModified) throws IOException {
+        writeHeader(name, content.length, lastModified);
+        this.out.write(content);
+        pad(content.length);
+    }
+
+    /**
+     * append a local file to the archive
+     *
+     * @param name path of the file inside the archive, e.g. roberta/original_hal.py
+     */
+    public void putFile(String name, File file) throws IOException {
+        long size = file.length();
+        writeHeader(name, size, file.lastModified());
+        try (InputStream in = new FileInputStream(file)) {
+            long written = copy(in, size);
+            if ( written != size ) {
+                throw new IOException("File " + file + " changed while it was archived");
+            }
+        }
+        pad(size);
+    }
+
+    /**
+     * append the content of a stream of known length to the archive
+     *
+     * @param name path of the file inside the archive
+     */
+    public void putFile(String name, InputStream in, long size, long lastModified) throws IOException {
+        writeHeader(name, size, lastModified);
+        long written = copy(in, size);
+        if ( written != size ) {
+            throw new IOException("Expected " + size + " bytes for " + name + " but got " + written);
+        }
+        pad(size);
+    }
+
+    /**
+     * write the two empty blocks marking the end of the archive. The underlying stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        this.out.write(new byte[2 * BLOCK_SIZE]);
+        this.out.flush();
+    }
+
+    private long copy(InputStream in, long size) throws IOException {
+        long written = 0;
+        while ( written < size ) {
+            int len = in.read(this.buffer, 0, (int) Math.min(this.buffer.length, size - written));
+            if ( len < 0 ) {
+                break;
+            }
+            this.out.write(this.buffer, 0, len);
+            written += len;
+        }
+        return written;
+    }
+
+    private void writeHeader(String name, long size, long lastModified) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if ( nameBytes.length >= 100 ) {
+            throw new IOException("File name too long for tar header: " + name);
+        }
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, lastModified / 1000);
+        header[156] = '0';
+        putAscii(header, 257, "ustar");
+        putAscii(header, 263, "00");
+        // the checksum is computed with the checksum field filled with spaces
+        for ( int i = 148; i < 156; i++ ) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for ( byte b : header ) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        this.out.write(header);
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if ( remainder != 0 ) {
+            this.out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    /**
+     * zero padded octal number followed by a NUL, filling the whole field
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        StringBuilder sb = new StringBuilder();
+        for ( int i = octal.length(); i < length - 1; i++ ) {
+            sb.append('0');
+        }
+        sb.append(octal);
+        putAscii(header, offset, sb.toString());
+        header[offset + length - 1] = 0;
+    }
+
+    private static void putAscii(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
@@ -1,8 +1,11 @@
 package de.fhg.iais.roberta.util;
 
+import java.io.File;
 import java.io.FileReader;
 import java.util.Properties;
 
+import org.apache.commons.lang3.SystemUtils;
+
 public class Utils {
 
     private static final String PROPERTY_DEFAULT_PATH = "openRobertaUSB.properties";
@@ -45,4 +48,14 @@ public class Utils {
     public static Properties getRobertaProperties() {
         return robertaProperties;
     }
+
+    /**
+     * @return the directory in which the connector keeps its files, OpenRoberta in %APPDATA% on windows and in the home directory otherwise
+     */
+    public static File getWorkingDirectory() {
+        if ( SystemUtils.IS_OS_WINDOWS ) {
+            return new File(System.getenv("APPDATA"), "OpenRoberta");
+        }
+        return new File(System.getProperty("user.home"), "OpenRoberta");
+    }
 }
@@ -0,0 +1,146 @@
+# Runner for Open Roberta programs on the NAO, started and supervised by the connector.
+#
+# The runner creates the Hal once and keeps it, its broker and its proxies alive. Every program
+# sent to the fifo is run in a fresh namespace, "Hal()" in the program returns the warm instance.
+# Afterwards the modules imported by the program and the attributes it set on the Hal are dropped.
+# While a program runs, its pid file holds the pid of the runner, the connector's state monitor
+# sees the program as running until the file is removed.
+import gc
+import os
+import signal
+import sys
+import time
+import traceback
+
+FIFO = "/tmp/roberta_runner.fifo"
+PID_FILE = "/tmp/roberta_runner.pid"
+PROGRAM_PID_FILE = "/tmp/roberta_program.pid"
+PROGRAM_LOG = "/tmp/roberta_program.log"
+
+
+class Terminated(BaseException):
+    pass
+
+
+class KeepAliveBroker(object):
+    """The broker of the warm Hal, programs must not shut it down when they end."""
+
+    def __init__(self, broker):
+        self.broker = broker
+
+    def shutdown(self):
+        pass
+
+    def __getattr__(self, name):
+        return getattr(self.broker, name)
+
+
+def terminate(signum, frame):
+    raise Terminated()
+
+
+def remove(path):
+    try:
+        os.remove(path)
+    except OSError:
+        pass
+
+
+def wait_for_cold_program():
+    """The runner is started after a program launched with a cold python, both must not create
+    their Hal and proxies at the same time."""
+    while True:
+        try:
+            with open(PROGRAM_PID_FILE) as f:
+                os.kill(int(f.readline().split()[0]), 0)
+        except (IOError, OSError, ValueError, IndexError):
+            return
+        time.sleep(0.2)
+
+
+def reset(hal, hal_state, modules):
+    """Forget what the last program left behind: the modules it imported and the proxies and
+    other attributes it set on the Hal."""
+    for name in list(sys.modules):
+        if name not in modules:
+            del sys.modules[name]
+    hal.__dict__.clear()
+    hal.__dict__.update(hal_state)
+    gc.collect()
+
+
+def run(path):
+    sys.stdout.flush()
+    sys.stderr.flush()
+    log = os.open(PROGRAM_LOG, os.O_WRONLY | os.O_CREAT | os.O_TRUNC, 0644)
+    stdout = os.dup(1)
+    stderr = os.dup(2)
+    os.dup2(log, 1)
+    os.dup2(log, 2)
+    os.close(log)
+    sys.argv = [path]
+    sys.path.insert(0, os.path.dirname(path))
+    namespace = {"__name__": "__main__", "__file__": path, "__builtins__": __builtins__}
+    try:
+        execfile(path, namespace)
+    except SystemExit:
+        pass
+    except Exception:
+        traceback.print_exc()
+    finally:
+        namespace.clear()
+        del sys.path[0]
+        sys.stdout.flush()
+        sys.stderr.flush()
+        os.dup2(stdout, 1)
+        os.dup2(stderr, 2)
+        os.close(stdout)
+        os.close(stderr)
+        remove(PROGRAM_PID_FILE)
+
+
+def main():
+    signal.signal(signal.SIGTERM, terminate)
+    # the connector writes "<pid> <version>" to the pid file, the fifo shows that the runner is warm
+    remove(FIFO)
+    # the Hal parses the command line
+    del sys.argv[1:]
+    wait_for_cold_program()
+    from roberta import original_hal
+    hal = original_hal.Hal()
+    broker = hal.myBroker
+    hal.myBroker = KeepAliveBroker(broker)
+
+    class WarmHal(original_hal.Hal):
+        def __new__(cls, *args, **kwargs):
+            return hal
+
+    original_hal.Hal = WarmHal
+    hal_state = dict(hal.__dict__)
+    modules = set(sys.modules)
+    os.mkfifo(FIFO)
+    # opened for writing too, so the fifo does not signal its end when a launch command closes it
+    fifo = os.fdopen(os.open(FIFO, os.O_RDWR), "r")
+    try:
+        while True:
+            path = fifo.readline().strip()
+            if path:
+                run(path)
+                reset(hal, hal_state, modules)
+    except Terminated:
+        pass
+    finally:
+        # a runner of the next version may have taken over already
+        try:
+            with open(PID_FILE) as f:
+                owner = f.readline().split(" ")[0]
+        except IOError:
+            owner = None
+        if owner == str(os.getpid()):
+            remove(FIFO)
+            remove(PID_FILE)
+        broker.shutdown()
+
+
+if __name__ == "__main__":
+    main()
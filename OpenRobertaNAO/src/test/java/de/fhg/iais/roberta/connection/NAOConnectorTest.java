@@ -0,0 +1,258 @@
+package de.fhg.iais.roberta.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.ListResourceBundle;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the connector against a simulated server and robot.
+ */
+public class NAOConnectorTest {
+    private final BlockingQueue<String> pushCommands = new LinkedBlockingQueue<>();
+    /**
+     * answers of the next push requests, afterwards the server repeats or sends a program once
+     */
+    private final BlockingQueue<String> scriptedAnswers = new LinkedBlockingQueue<>();
+    private final AtomicBoolean programSent = new AtomicBoolean();
+    private volatile boolean programRunning = false;
+
+    private String userHome;
+    private File home;
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private NAOConnector connector;
+
+    @Before
+    public void setUp() throws Exception {
+        // the connector keeps its HALs, programs and registrations in the home directory
+        this.userHome = System.getProperty("user.home");
+        this.home = Files.createTempDirectory("nao-connector").toFile();
+        System.setProperty("user.home", this.home.getPath());
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/rest/pushcmd", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                push(exchange);
+            }
+        });
+        this.server.createContext("/rest/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Filename", "program.py");
+                respond(exchange, "print 'hello'".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        this.server.createContext("/update/nao/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, halZip());
+            }
+        });
+        this.serverThreads = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverThreads);
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if ( this.connector != null ) {
+            this.connector.close();
+        }
+        this.server.stop(0);
+        this.serverThreads.shutdownNow();
+        System.setProperty("user.home", this.userHome);
+        FileUtils.deleteQuietly(this.home);
+    }
+
+    @Test(timeout = 30000)
+    public void reportsTheRunningProgramUntilItEnds() throws Exception {
+        startConnector();
+
+        assertEquals(Connector.CMD_REGISTER, nextPushCommand());
+        // answered with download_run
+        assertEquals(Connector.CMD_PUSH, nextPushCommand());
+        // the server is kept informed while the program runs
+        assertEquals(Connector.CMD_ISRUNNING, nextPushCommand());
+        assertEquals(Connector.CMD_ISRUNNING, nextPushCommand());
+        assertEquals(Connector.State.WAIT_EXECUTION, this.connector.getState());
+
+        this.programRunning = false;
+        String command = nextPushCommand();
+        while ( command.equals(Connector.CMD_ISRUNNING) ) {
+            // sent before the end of the program was noticed
+            command = nextPushCommand();
+        }
+        assertEquals(Connector.CMD_PUSH, command);
+    }
+
+    @Test(timeout = 30000)
+    public void registersTheTokenAgainAfterAnAbort() throws Exception {
+        this.programSent.set(true);
+        this.scriptedAnswers.addAll(Arrays.asList(Connector.CMD_REPEAT, Connector.CMD_ABORT, Connector.CMD_REPEAT));
+        startConnector();
+
+        assertEquals(Connector.CMD_REGISTER, nextPushCommand());
+        String token = this.connector.getToken();
+        // answered with abort
+        assertEquals(Connector.CMD_PUSH, nextPushCommand());
+        assertEquals(Connector.CMD_REGISTER, nextPushCommand());
+        assertEquals(Connector.CMD_PUSH, nextPushCommand());
+        assertEquals(Connector.CMD_PUSH, nextPushCommand());
+        assertEquals(token, this.connector.getToken());
+        assertEquals(Connector.State.WAIT_FOR_CMD, this.connector.getState());
+    }
+
+    @Test(timeout = 30000)
+    public void givesUpATokenAbortedRightAfterItsRegistration() throws Exception {
+        this.programSent.set(true);
+        this.scriptedAnswers.addAll(Arrays.asList(Connector.CMD_REPEAT, Connector.CMD_ABORT, Connector.CMD_REPEAT, Connector.CMD_ABORT));
+        startConnector();
+
+        assertEquals(Connector.CMD_REGISTER, nextPushCommand());
+        assertEquals(Connector.CMD_PUSH, nextPushCommand());
+        assertEquals(Connector.CMD_REGISTER, nextPushCommand());
+        assertEquals(Connector.CMD_PUSH, nextPushCommand());
+        assertNull(this.pushCommands.poll(1, TimeUnit.SECONDS));
+        assertEquals("", this.connector.getToken());
+        assertFalse(this.connector.getState() == Connector.State.WAIT_FOR_CMD);
+    }
+
+    private void startConnector() {
+        final int port = this.server.getAddress().getPort();
+        this.connector = new NAOConnector(new ListResourceBundle() {
+            @Override
+            protected Object[][] getContents() {
+                return new Object[][] {
+                    {
+                        "serverIp",
+                        "127.0.0.1"
+                    },
+                    {
+                        "serverPort",
+                        Integer.toString(port)
+                    }
+                };
+            }
+        });
+        this.connector.setRobotIp("127.0.0.1");
+        this.connector.setRobotUserName("nao");
+        this.connector.setRobotPassword("nao");
+        this.connector.setCommunicator(new SimulatedNAO());
+        Thread connectorThread = new Thread(this.connector, "connector");
+        connectorThread.setDaemon(true);
+        connectorThread.start();
+        this.connector.userPressConnectButton();
+    }
+
+    private String nextPushCommand() throws InterruptedException {
+        String command = this.pushCommands.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no push request from the connector", command);
+        return command;
+    }
+
+    private void push(HttpExchange exchange) throws IOException {
+        String command;
+        try (InputStream in = exchange.getRequestBody()) {
+            command = new JSONObject(IOUtils.toString(in, StandardCharsets.UTF_8)).getString(Connector.KEY_CMD);
+        }
+        this.pushCommands.add(command);
+        String answer = this.scriptedAnswers.poll();
+        if ( answer == null ) {
+            answer = Connector.CMD_REPEAT;
+            if ( command.equals(Connector.CMD_PUSH) && this.programSent.compareAndSet(false, true) ) {
+                answer = Connector.CMD_DOWNLOAD_RUN;
+            }
+        }
+        if ( answer.equals(Connector.CMD_REPEAT) && !command.equals(Connector.CMD_REGISTER) ) {
+            // a short hold time instead of the long poll of the real server
+            try {
+                Thread.sleep(100);
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        respond(exchange, new JSONObject().put(Connector.KEY_CMD, answer).toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] halZip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("roberta/original_hal.py"));
+            zip.write("class Hal(object):\n    pass\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A robot which runs a program from the upload until the test ends it.
+     */
+    private class SimulatedNAO extends NAOCommunicator {
+        SimulatedNAO() {
+            super("127.0.0.1", "nao", "nao");
+        }
+
+        @Override
+        public String checkFirmwareVersion() {
+            return getFirmwareVersion();
+        }
+
+        @Override
+        public String getFirmwareVersion() {
+            return "2-8";
+        }
+
+        @Override
+        public void prepareUpload() {
+        }
+
+        @Override
+        public void uploadFile(byte[] binaryfile, String fileName) {
+            NAOConnectorTest.this.programRunning = true;
+        }
+
+        @Override
+        public NAOState getNAOstate() {
+            return NAOConnectorTest.this.programRunning ? NAOState.PROGRAM_RUNNING : NAOState.WAITING_FOR_PROGRAM;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package de.fhg.iais.roberta.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NAODiscoveryTest {
+    private final List<ServerSocket> listeners = new ArrayList<>();
+    private int naoqiPort;
+    private int sshPort;
+    private int closedPort;
+
+    @Before
+    public void setUp() throws Exception {
+        // 127.0.0.1 plays a robot, only this loopback address is configured everywhere
+        this.naoqiPort = listen("127.0.0.1", 0);
+        this.sshPort = listen("127.0.0.1", 0);
+        try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            this.closedPort = unused.getLocalPort();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for ( ServerSocket listener : this.listeners ) {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void findsHostsAcceptingAllPorts() throws Exception {
+        List<InetAddress> hosts = new ArrayList<>();
+        for ( int i = 1; i <= 5; i++ ) {
+            hosts.add(InetAddress.getByName("127.0.0." + i));
+        }
+        List<NAODiscovery.Robot> robots = new NAODiscovery(4, 300, this.naoqiPort, this.sshPort).scan(hosts);
+        assertEquals(1, robots.size());
+        assertEquals("127.0.0.1", robots.get(0).getIp());
+    }
+
+    @Test
+    public void ignoresHostsWithoutSsh() throws Exception {
+        List<InetAddress> hosts = new ArrayList<>();
+        hosts.add(InetAddress.getByName("127.0.0.1"));
+        // NAOqi answers, but nothing listens on the ssh port
+        assertTrue(new NAODiscovery(4, 300, this.naoqiPort, this.closedPort).scan(hosts).isEmpty());
+        assertTrue(new NAODiscovery(4, 300, this.closedPort, this.sshPort).scan(hosts).isEmpty());
+    }
+
+    @Test
+    public void scansSubnetWithinASecond() throws Exception {
+        List<InetAddress> hosts = NAODiscovery.subnetHosts((Inet4Address) InetAddress.getByName("127.0.0.77"), 24);
+        assertEquals(254, hosts.size());
+        long start = System.currentTimeMillis();
+        List<NAODiscovery.Robot> robots = new NAODiscovery(64, 300, this.naoqiPort, this.sshPort).scan(hosts);
+        long millis = System.currentTimeMillis() - start;
+        assertEquals(1, robots.size());
+        assertTrue("scan took " + millis + " ms", millis < 1000);
+    }
+
+    @Test
+    public void limitsSubnetsToTheHosts() throws Exception {
+        List<InetAddress> hosts = NAODiscovery.subnetHosts((Inet4Address) InetAddress.getByName("192.168.178.20"), 30);
+        assertEquals(2, hosts.size());
+        assertEquals("192.168.178.21", hosts.get(0).getHostAddress());
+        assertEquals("192.168.178.22", hosts.get(1).getHostAddress());
+    }
+
+    private int listen(String address, int port) throws Exception {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(address, port));
+        this.listeners.add(listener);
+        return listener.getLocalPort();
+    }
+}
@@ -0,0 +1,83 @@
+package de.fhg.iais.roberta.connection;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+
+/**
+ * Compares the allocations of one iteration of the push loop, without the network: building and serialising the request body and reading the command of
+ * the answer. Not run by the build, start it with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.fhg.iais.roberta.connection.PushLoopBenchmark
+ * </pre>
+ */
+public class PushLoopBenchmark {
+    private static final int ITERATIONS = 200000;
+    private static final byte[] ANSWER = "{\"cmd\":\"repeat\"}".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        NAOCommunicator naocomm = new NAOCommunicator("127.0.0.1", "nao", "nao");
+        for ( int round = 0; round < 3; round++ ) {
+            measure("json per request  ", new PerRequestJson(naocomm));
+            measure("reused body + scan", new ReusedBody(naocomm));
+        }
+    }
+
+    private static void measure(String name, Runnable iteration) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for ( int i = 0; i < ITERATIONS; i++ ) {
+            iteration.run();
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        System.out.printf("%s %8d bytes/iteration %8d ns/iteration%n", name, bytes / ITERATIONS, nanos / ITERATIONS);
+    }
+
+    /**
+     * the push loop before the body was reused
+     */
+    private static class PerRequestJson implements Runnable {
+        private final NAOCommunicator naocomm;
+
+        PerRequestJson(NAOCommunicator naocomm) {
+            this.naocomm = naocomm;
+        }
+
+        @Override
+        public void run() {
+            JSONObject deviceInfo = this.naocomm.getDeviceInfo();
+            deviceInfo.put(Connector.KEY_TOKEN, "ABCD1234");
+            deviceInfo.put(Connector.KEY_CMD, Connector.CMD_PUSH);
+            HttpEntity body = new StringEntity(deviceInfo.toString(), ContentType.create("application/json", "UTF-8"));
+            String answer = new String(ANSWER, StandardCharsets.UTF_8);
+            if ( body == null || !new JSONObject(answer).getString(Connector.KEY_CMD).equals(Connector.CMD_REPEAT) ) {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static class ReusedBody implements Runnable {
+        private final NAOCommunicator naocomm;
+        private final PushRequestBody pushRequestBody = new PushRequestBody();
+
+        ReusedBody(NAOCommunicator naocomm) {
+            this.naocomm = naocomm;
+        }
+
+        @Override
+        public void run() {
+            HttpEntity body = this.pushRequestBody.get(this.naocomm, "ABCD1234", Connector.CMD_PUSH);
+            if ( body == null || PushResponse.parseCommand(ANSWER, ANSWER.length) != Connector.CMD_REPEAT ) {
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
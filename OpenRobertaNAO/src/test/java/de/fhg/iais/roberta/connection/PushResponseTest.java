@@ -0,0 +1,62 @@
+package de.fhg.iais.roberta.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class PushResponseTest {
+
+    @Test
+    public void returnsKnownCommandsAsConstant() throws Exception {
+        assertSame(Connector.CMD_REPEAT, parse("{\"cmd\":\"repeat\"}"));
+        assertSame(Connector.CMD_DOWNLOAD_RUN, parse("{\"cmd\":\"download_run\"}"));
+        assertEquals("unknown", parse("{\"cmd\":\"unknown\"}"));
+    }
+
+    @Test
+    public void skipsWhitespace() throws Exception {
+        assertSame(Connector.CMD_ABORT, parse(" \r\n{ \"cmd\"\t:\n \"abort\" }"));
+        assertSame(Connector.CMD_ABORT, parse("{ \"token\" : \"1A2B\" ,\n \"cmd\" : \"abort\" }"));
+    }
+
+    @Test
+    public void ignoresNestedKeys() throws Exception {
+        assertSame(Connector.CMD_REPEAT, parse("{\"config\":{\"cmd\":\"abort\"},\"cmd\":\"repeat\"}"));
+        assertSame(Connector.CMD_DOWNLOAD, parse("{\"n\":1,\"list\":[{\"cmd\":\"abort\"},[]],\"ok\":true,\"cmd\":\"download\"}"));
+    }
+
+    @Test
+    public void ignoresKeysInStrings() throws Exception {
+        assertSame(Connector.CMD_REPEAT, parse("{\"msg\":\"\\\"cmd\\\":\\\"abort\\\"\",\"cmd\":\"repeat\"}"));
+        assertSame(Connector.CMD_REPEAT, parse("{\"\\\"cmd\\\"\":\"abort\",\"cmd\":\"repeat\"}"));
+    }
+
+    @Test
+    public void readsEscapedCommands() throws Exception {
+        assertEquals("a\"b", parse("{\"cmd\":\"a\\\"b\"}"));
+        assertEquals(Connector.CMD_ISRUNNING, parse("{\"cmd\":\"isrunnin\\u0067\"}"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void failsWithoutCommand() throws Exception {
+        parse("{\"config\":{\"cmd\":\"abort\"}}");
+    }
+
+    @Test
+    public void readsAnswersLargerThanTheBuffer() throws Exception {
+        StringBuilder padding = new StringBuilder();
+        for ( int i = 0; i < 2000; i++ ) {
+            padding.append('x');
+        }
+        assertSame(Connector.CMD_UPDATE, parse("{\"padding\":\"" + padding + "\",\"cmd\":\"update\"}"));
+    }
+
+    private static String parse(String answer) throws Exception {
+        return PushResponse.readCommand(new ByteArrayInputStream(answer.getBytes(StandardCharsets.UTF_8)));
+    }
+}
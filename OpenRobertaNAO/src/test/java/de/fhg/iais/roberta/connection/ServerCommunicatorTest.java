@@ -0,0 +1,231 @@
+package de.fhg.iais.roberta.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ListResourceBundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ServerCommunicatorTest {
+    private final AtomicInteger flakyDownloads = new AtomicInteger();
+    private final CountDownLatch slowDownloadEnded = new CountDownLatch(1);
+    private String userHome;
+    private File home;
+    private HttpServer server;
+    private ServerConnectionPool connections;
+    private ServerCommunicator servcomm;
+
+    @Before
+    public void setUp() throws Exception {
+        // the HAL store lives in the home directory
+        this.userHome = System.getProperty("user.home");
+        this.home = Files.createTempDirectory("server-communicator").toFile();
+        System.setProperty("user.home", this.home.getPath());
+
+        // a server installed below /lab, e.g. behind a proxy
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/lab/rest/pushcmd", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, new JSONObject().put(Connector.KEY_CMD, Connector.CMD_REPEAT).toString());
+            }
+        });
+        this.server.createContext("/lab/rest/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Filename", "program.py");
+                respond(exchange, "print 'hello'");
+            }
+        });
+        this.server.createContext("/error/rest/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] page = "<html>not found</html>".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(404, page.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(page);
+                }
+            }
+        });
+        this.server.createContext("/unnamed/rest/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "print 'hello'");
+            }
+        });
+        this.server.createContext("/flaky/rest/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ( ServerCommunicatorTest.this.flakyDownloads.incrementAndGet() == 1 ) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().add("Filename", "program.py");
+                respond(exchange, "print 'hello'");
+            }
+        });
+        this.server.createContext("/slow/rest/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // the first bytes of a program which never ends
+                exchange.getResponseHeaders().add("Filename", "program.py");
+                exchange.sendResponseHeaders(200, 1000);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write("print".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    ServerCommunicatorTest.this.slowDownloadEnded.await(10, TimeUnit.SECONDS);
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                } catch ( IOException e ) {
+                    // the client went away
+                }
+            }
+        });
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+        this.connections = new ServerConnectionPool(new ListResourceBundle() {
+            @Override
+            protected Object[][] getContents() {
+                return new Object[][] {
+                    {
+                        "httpRetryBaseDelay",
+                        "10"
+                    }
+                };
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.slowDownloadEnded.countDown();
+        if ( this.servcomm != null ) {
+            this.servcomm.shutdown();
+        }
+        this.server.stop(0);
+        System.setProperty("user.home", this.userHome);
+        FileUtils.deleteQuietly(this.home);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsThePathOfTheServerAddress() throws Exception {
+        this.servcomm = new ServerCommunicator(address(this.server.getAddress().getPort()), this.connections);
+        assertEquals(Connector.CMD_REPEAT, this.servcomm.pushRequest(pushRequest()).getString(Connector.KEY_CMD));
+        assertEquals("print 'hello'", new String(this.servcomm.downloadProgram(pushRequest()), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 10000)
+    public void keepsThePathOfTheServerAddressOnFailover() throws Exception {
+        int closedPort;
+        try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            closedPort = unused.getLocalPort();
+        }
+        this.servcomm = new ServerCommunicator(address(closedPort) + ", " + address(this.server.getAddress().getPort()), this.connections);
+        assertEquals(Connector.CMD_REPEAT, this.servcomm.pushRequest(pushRequest()).getString(Connector.KEY_CMD));
+        assertEquals("http://" + address(this.server.getAddress().getPort()), this.servcomm.getEndpoints().current().toString());
+    }
+
+    @Test(timeout = 10000)
+    public void streamsOnlyPrograms() throws Exception {
+        int port = this.server.getAddress().getPort();
+        this.servcomm = new ServerCommunicator("127.0.0.1:" + port + "/error", this.connections);
+        assertNotStreamed();
+        this.servcomm.updateCustomServerAddress("127.0.0.1:" + port + "/unnamed");
+        assertNotStreamed();
+    }
+
+    @Test(timeout = 10000)
+    public void repeatsAStreamedDownloadUntilItReachesTheReceiver() throws Exception {
+        this.servcomm = new ServerCommunicator("127.0.0.1:" + this.server.getAddress().getPort() + "/flaky", this.connections);
+        final AtomicInteger received = new AtomicInteger();
+        this.servcomm.downloadProgram(pushRequest(), new ServerCommunicator.ProgramReceiver() {
+            @Override
+            public void receive(String filename, InputStream content, long length) throws IOException {
+                assertEquals("print 'hello'", IOUtils.toString(content, StandardCharsets.UTF_8));
+                received.incrementAndGet();
+            }
+        });
+        assertEquals(2, this.flakyDownloads.get());
+        assertEquals(1, received.get());
+    }
+
+    @Test(timeout = 10000)
+    public void abortsAStreamedDownload() throws Exception {
+        this.servcomm = new ServerCommunicator("127.0.0.1:" + this.server.getAddress().getPort() + "/slow", this.connections);
+        final CountDownLatch receiving = new CountDownLatch(1);
+        ServerRequest<String> download = this.servcomm.downloadProgramAsync(pushRequest(), new ServerCommunicator.ProgramReceiver() {
+            @Override
+            public void receive(String filename, InputStream content, long length) throws IOException {
+                receiving.countDown();
+                IOUtils.toByteArray(content);
+            }
+        });
+        assertTrue(receiving.await(5, TimeUnit.SECONDS));
+        this.servcomm.abort();
+        assertTrue(download.isCancelled());
+        try {
+            download.getResult();
+            fail("the download was not aborted");
+        } catch ( IOException e ) {
+            // expected
+        }
+    }
+
+    private void assertNotStreamed() {
+        final AtomicBoolean received = new AtomicBoolean();
+        try {
+            this.servcomm.downloadProgram(pushRequest(), new ServerCommunicator.ProgramReceiver() {
+                @Override
+                public void receive(String filename, InputStream content, long length) {
+                    received.set(true);
+                }
+            });
+            fail("the download did not fail");
+        } catch ( IOException e ) {
+            assertFalse(received.get());
+        }
+    }
+
+    private static String address(int port) {
+        return "127.0.0.1:" + port + "/lab";
+    }
+
+    private static JSONObject pushRequest() {
+        return new JSONObject().put(Connector.KEY_TOKEN, "1A2B3C4D").put(Connector.KEY_CMD, Connector.CMD_PUSH);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.fhg.iais.roberta.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SshConnectionTest {
+    private static final String MARKER = "--roberta-step-1a2b";
+    private static final List<String> COMMANDS = Arrays.asList("cat manifest", "ls -1 programs", "rm old.py");
+
+    @Test
+    public void splitsTheOutputOfEveryCommand() throws Exception {
+        String out = "a=1\nb=2\n" + marker(0) + marker(0) + "one.py\ntwo.py" + marker(0);
+        String err = marker(0) + marker(0) + marker(0);
+        List<SshConnection.BatchStep> steps = SshConnection.parseBatch(COMMANDS, false, MARKER, out, err, 0);
+        assertEquals(3, steps.size());
+        assertEquals("cat manifest", steps.get(0).getCommand());
+        assertEquals("a=1\nb=2\n", steps.get(0).getOutput());
+        assertEquals("", steps.get(1).getOutput());
+        assertEquals("one.py\ntwo.py", steps.get(2).getOutput());
+        assertEquals("", steps.get(2).getError());
+    }
+
+    @Test
+    public void assignsStderrToItsCommand() throws Exception {
+        String out = marker(0) + "no such file\n" + marker(1) + marker(0);
+        String err = marker(0) + "ls: cannot access programs\n" + marker(1) + "warning" + marker(0);
+        List<SshConnection.BatchStep> steps = SshConnection.parseBatch(COMMANDS, false, MARKER, out, err, 0);
+        assertEquals("", steps.get(0).getError());
+        assertEquals(1, steps.get(1).getExitStatus());
+        assertEquals("ls: cannot access programs\n", steps.get(1).getError());
+        assertEquals("", steps.get(1).getOutputIfSucceeded());
+        assertEquals("warning", steps.get(2).getError());
+        assertEquals(0, steps.get(2).getExitStatus());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWithoutTheFinalMarker() throws Exception {
+        // the channel dropped while the last command was running
+        String out = marker(0) + marker(0) + "one.py\n";
+        String err = marker(0) + marker(0);
+        SshConnection.parseBatch(COMMANDS, false, MARKER, out, err, -1);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWithAPartialFinalMarker() throws Exception {
+        String out = marker(0) + marker(0) + "\n" + MARKER + " 0";
+        String err = marker(0) + marker(0) + marker(0);
+        SshConnection.parseBatch(COMMANDS, false, MARKER, out, err, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWithoutAMarkerOnStderr() throws Exception {
+        String out = marker(0) + marker(0) + marker(0);
+        String err = marker(0) + marker(0);
+        SshConnection.parseBatch(COMMANDS, false, MARKER, out, err, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfTheShellFailed() throws Exception {
+        String out = marker(0) + marker(0) + marker(0);
+        String err = marker(0) + marker(0) + marker(0);
+        SshConnection.parseBatch(COMMANDS, false, MARKER, out, err, 255);
+    }
+
+    @Test
+    public void stopsAtTheFirstFailureWithFailFast() throws Exception {
+        String out = marker(0) + marker(2);
+        String err = marker(0) + "ls: cannot access programs\n" + marker(2);
+        List<SshConnection.BatchStep> steps = SshConnection.parseBatch(COMMANDS, true, MARKER, out, err, 2);
+        assertEquals(2, steps.size());
+        assertEquals(2, steps.get(1).getExitStatus());
+    }
+
+    @Test
+    public void acceptsAFailureOfTheLastCommandWithFailFast() throws Exception {
+        String out = marker(0) + marker(0) + marker(1);
+        String err = marker(0) + marker(0) + "rm: cannot remove old.py\n" + marker(1);
+        List<SshConnection.BatchStep> steps = SshConnection.parseBatch(COMMANDS, true, MARKER, out, err, 1);
+        assertEquals(3, steps.size());
+        assertEquals("rm: cannot remove old.py\n", steps.get(2).getError());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfAFailFastBatchStopsWithoutFailure() throws Exception {
+        String out = marker(0) + marker(0);
+        String err = marker(0) + marker(0);
+        SshConnection.parseBatch(COMMANDS, true, MARKER, out, err, -1);
+    }
+
+    private static String marker(int exitStatus) {
+        return "\n" + MARKER + " " + exitStatus + "\n";
+    }
+}
@@ -0,0 +1,154 @@
+package de.fhg.iais.roberta.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+public class SshSessionPoolTest {
+    private final SimulatedPool pool = new SimulatedPool();
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        this.pool.keepAliveBlocked.countDown();
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    public void reusesReleasedSessions() throws Exception {
+        Session first = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        this.pool.release(first);
+        Session second = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        assertSame(first, second);
+        assertEquals(1, this.pool.opened.get());
+        assertEquals(1, this.pool.keepAlives.get());
+    }
+
+    @Test
+    public void opensANewSessionForAnotherPassword() throws Exception {
+        Session first = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        this.pool.release(first);
+        Session second = this.pool.acquire("127.0.0.1", 22, "nao", "secret");
+        assertNotSame(first, second);
+        assertTrue(this.pool.disconnected.contains(first));
+    }
+
+    @Test
+    public void replacesSessionsFailingTheKeepAlive() throws Exception {
+        Session first = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        this.pool.release(first);
+        this.pool.broken.add(first);
+        Session second = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        assertNotSame(first, second);
+        assertTrue(this.pool.disconnected.contains(first));
+    }
+
+    @Test
+    public void disconnectsAnInvalidatedSessionWithItsLastLease() throws Exception {
+        Session first = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        assertSame(first, this.pool.acquire("127.0.0.1", 22, "nao", "nao"));
+        this.pool.invalidate(first);
+        // still used by the second lease
+        assertFalse(this.pool.disconnected.contains(first));
+        Session second = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        assertNotSame(first, second);
+        this.pool.release(first);
+        assertTrue(this.pool.disconnected.contains(first));
+        assertFalse(this.pool.disconnected.contains(second));
+    }
+
+    @Test
+    public void evictsIdleSessionsOnly() throws Exception {
+        Session idle = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        this.pool.release(idle);
+        Session leased = this.pool.acquire("127.0.0.2", 22, "nao", "nao");
+        this.pool.evictIdleSessions(System.currentTimeMillis() + SshSessionPool.IDLE_TIMEOUT + 1000);
+        assertTrue(this.pool.disconnected.contains(idle));
+        assertFalse(this.pool.disconnected.contains(leased));
+        assertNotSame(idle, this.pool.acquire("127.0.0.1", 22, "nao", "nao"));
+    }
+
+    @Test(timeout = 10000)
+    public void aHangingKeepAliveDelaysNoOtherRobot() throws Exception {
+        final Session hanging = this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+        Session other = this.pool.acquire("127.0.0.2", 22, "nao", "nao");
+        this.pool.release(hanging);
+        this.pool.hanging.add(hanging);
+        Future<Session> blocked = this.threads.submit(new Callable<Session>() {
+            @Override
+            public Session call() throws Exception {
+                return SshSessionPoolTest.this.pool.acquire("127.0.0.1", 22, "nao", "nao");
+            }
+        });
+        assertTrue(this.pool.keepAliveStarted.await(5, TimeUnit.SECONDS));
+        // the pool is not locked while the keepalive hangs
+        this.pool.release(other);
+        assertSame(other, this.pool.acquire("127.0.0.2", 22, "nao", "nao"));
+        this.pool.evictIdleSessions();
+        assertFalse(blocked.isDone());
+        this.pool.keepAliveBlocked.countDown();
+        assertSame(hanging, blocked.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A pool handing out unconnected sessions, their keepalive fails or hangs on demand.
+     */
+    private static class SimulatedPool extends SshSessionPool {
+        private final JSch jSch = new JSch();
+        private final AtomicInteger opened = new AtomicInteger();
+        private final AtomicInteger keepAlives = new AtomicInteger();
+        private final Set<Session> disconnected = Collections.synchronizedSet(new HashSet<Session>());
+        private final Set<Session> broken = Collections.synchronizedSet(new HashSet<Session>());
+        private final Set<Session> hanging = Collections.synchronizedSet(new HashSet<Session>());
+        private final CountDownLatch keepAliveStarted = new CountDownLatch(1);
+        private final CountDownLatch keepAliveBlocked = new CountDownLatch(1);
+
+        @Override
+        Session open(String host, int port, String username, String password) throws JSchException {
+            this.opened.incrementAndGet();
+            return this.jSch.getSession(username, host, port);
+        }
+
+        @Override
+        boolean isConnected(Session session) {
+            return !this.disconnected.contains(session);
+        }
+
+        @Override
+        void sendKeepAlive(Session session) throws Exception {
+            this.keepAlives.incrementAndGet();
+            if ( this.hanging.contains(session) ) {
+                this.keepAliveStarted.countDown();
+                this.keepAliveBlocked.await();
+            }
+            if ( this.broken.contains(session) ) {
+                throw new JSchException("connection reset");
+            }
+        }
+
+        @Override
+        void disconnect(Session session) {
+            this.disconnected.add(session);
+        }
+    }
+}
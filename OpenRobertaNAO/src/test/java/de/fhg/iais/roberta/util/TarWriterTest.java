@@ -0,0 +1,151 @@
+package de.fhg.iais.roberta.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarWriterTest {
+    private static final long LAST_MODIFIED = 1500000000000L;
+    // 99 bytes, the longest name fitting into the header
+    private static final String LONGEST_NAME = "roberta/" + repeat('n', 88) + ".py";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("tar-writer").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(this.dir);
+    }
+
+    @Test
+    public void writesAnArchiveReadByTar() throws Exception {
+        Assume.assumeTrue(tarIsAvailable());
+        File local = new File(this.dir, "local.py");
+        FileUtils.writeByteArrayToFile(local, content(513));
+        File archive = new File(this.dir, "archive.tar");
+        FileUtils.writeByteArrayToFile(archive, archive(local));
+
+        String listing = run("tar", "-tvf", archive.getPath());
+        for ( String name : Arrays.asList("roberta/empty.py", "roberta/block.py", LONGEST_NAME, "program.py") ) {
+            assertTrue(name + " missing in\n" + listing, listing.contains(name));
+        }
+        File extracted = new File(this.dir, "extracted");
+        assertTrue(extracted.mkdir());
+        run("tar", "-xf", archive.getPath(), "-C", extracted.getPath());
+        assertEquals(0, new File(extracted, "roberta/empty.py").length());
+        assertArrayEquals(content(512), FileUtils.readFileToByteArray(new File(extracted, "roberta/block.py")));
+        assertArrayEquals(content(513), FileUtils.readFileToByteArray(new File(extracted, LONGEST_NAME)));
+        assertArrayEquals(content(1), FileUtils.readFileToByteArray(new File(extracted, "program.py")));
+        assertEquals(LAST_MODIFIED, new File(extracted, "program.py").lastModified());
+    }
+
+    @Test
+    public void padsEveryEntryToFullBlocks() throws Exception {
+        File local = new File(this.dir, "local.py");
+        FileUtils.writeByteArrayToFile(local, content(513));
+        byte[] archive = archive(local);
+        // 4 headers, 0 + 1 + 2 + 1 content blocks and 2 empty blocks at the end
+        assertEquals(10 * 512, archive.length);
+        assertChecksum(archive, 0);
+        assertChecksum(archive, 512);
+        assertChecksum(archive, 3 * 512);
+        assertChecksum(archive, 6 * 512);
+        assertArrayEquals(new byte[2 * 512], Arrays.copyOfRange(archive, 8 * 512, 10 * 512));
+    }
+
+    @Test
+    public void rejectsNamesNotFittingIntoTheHeader() throws Exception {
+        TarWriter tar = new TarWriter(new ByteArrayOutputStream());
+        for ( String name : Arrays.asList(LONGEST_NAME + "c", "roberta/" + repeat('ä', 46)) ) {
+            try {
+                tar.putFile(name, new byte[0], LAST_MODIFIED);
+                fail(name + " was accepted");
+            } catch ( IOException e ) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfTheStreamEndsEarly() throws Exception {
+        new TarWriter(new ByteArrayOutputStream()).putFile("program.py", new ByteArrayInputStream(content(10)), 11, LAST_MODIFIED);
+    }
+
+    private static byte[] archive(File local) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarWriter tar = new TarWriter(out);
+        tar.putFile("roberta/empty.py", new byte[0], LAST_MODIFIED);
+        tar.putFile("roberta/block.py", content(512), LAST_MODIFIED);
+        tar.putFile(LONGEST_NAME, local);
+        tar.putFile("program.py", new ByteArrayInputStream(content(1)), 1, LAST_MODIFIED);
+        tar.finish();
+        return out.toByteArray();
+    }
+
+    private static void assertChecksum(byte[] archive, int offset) {
+        byte[] header = Arrays.copyOfRange(archive, offset, offset + 512);
+        assertEquals("ustar", new String(header, 257, 5, StandardCharsets.US_ASCII));
+        long expected = Long.parseLong(new String(header, 148, 6, StandardCharsets.US_ASCII), 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for ( byte b : header ) {
+            checksum += b & 0xff;
+        }
+        assertEquals(expected, checksum);
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for ( int i = 0; i < length; i++ ) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static boolean tarIsAvailable() {
+        try {
+            run("tar", "--version");
+            return true;
+        } catch ( Exception e ) {
+            return false;
+        }
+    }
+
+    private static String run(String... command) throws IOException, InterruptedException {
+        List<String> commandLine = Arrays.asList(command);
+        Process process = new ProcessBuilder(commandLine).redirectErrorStream(true).start();
+        String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+        int status = process.waitFor();
+        if ( status != 0 ) {
+            throw new IOException(commandLine + " failed with " + status + ":\n" + output);
+        }
+        return output;
+    }
+}